@@ -0,0 +1,149 @@
+package hudson.plugins.git;
+
+import static hudson.Util.fixEmpty;
+import hudson.model.User;
+import hudson.tasks.Mailer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves changelog authors to {@link User}s. Rendering the changes of a
+ * build resolves the same few authors over and over, so users are cached by
+ * name and e-mail address, and e-mail addresses are recorded on the users
+ * in the background rather than while serving the request. A cached user is
+ * only used while it is still the user of that name, so deleted users and
+ * users reloaded by Hudson are resolved again.
+ */
+final class AuthorCache
+{
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final Map<String, User> USERS = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * E-mail addresses waiting to be recorded, by user.
+     */
+    private static final Map<User, String> PENDING_EMAILS = new HashMap<User, String>();
+
+    /**
+     * The thread recording the e-mail addresses, started when there is one
+     * to record and stopped with the plugin.
+     */
+    private static ExecutorService updater;
+
+    private AuthorCache()
+    {
+    }
+
+    /**
+     * Get the user for a changelog author, creating it if needed.
+     */
+    static User resolve(String name, String email)
+    {
+        String key = name + '\n' + email;
+        User user;
+        synchronized (USERS)
+        {
+            user = USERS.get(key);
+        }
+        if (user != null && user == User.get(user.getId(), false))
+            return user;
+
+        user = User.get(name, true);
+
+        // set email address for user if needed
+        if (fixEmpty(email) != null && user.getProperty(Mailer.UserProperty.class) == null)
+            recordEmail(user, email);
+
+        synchronized (USERS)
+        {
+            USERS.put(key, user);
+        }
+        return user;
+    }
+
+    private static void recordEmail(User user, String email)
+    {
+        synchronized (PENDING_EMAILS)
+        {
+            boolean idle = PENDING_EMAILS.isEmpty();
+            PENDING_EMAILS.put(user, email);
+            if (!idle)
+                return; // picked up by the batch already queued
+        }
+
+        submit(new Runnable() {
+            public void run()
+            {
+                Map<User, String> batch;
+                synchronized (PENDING_EMAILS)
+                {
+                    batch = new HashMap<User, String>(PENDING_EMAILS);
+                    PENDING_EMAILS.clear();
+                }
+
+                for (Map.Entry<User, String> e : batch.entrySet())
+                {
+                    User u = e.getKey();
+                    if (u.getProperty(Mailer.UserProperty.class) != null)
+                        continue;
+                    try
+                    {
+                        u.addProperty(new Mailer.UserProperty(e.getValue()));
+                    }
+                    catch (IOException ex)
+                    {
+                        LOGGER.log(Level.FINE, "Failed to record e-mail address of " + u, ex);
+                    }
+                }
+            }
+        });
+    }
+
+    private static synchronized void submit(Runnable task)
+    {
+        if (updater == null)
+        {
+            updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Git author updater");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        updater.submit(task);
+    }
+
+    /**
+     * Stop the thread recording the e-mail addresses, once those already
+     * queued are recorded.
+     */
+    static synchronized void shutdown()
+    {
+        if (updater != null)
+        {
+            updater.shutdown();
+            updater = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AuthorCache.class.getName());
+}
@@ -0,0 +1,221 @@
+package hudson.plugins.git;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A changelog that is being recorded in the workspace while the build runs.
+ * Until it is done the changelog file of the build only holds a placeholder.
+ * <p>
+ * The recorded changelog is moved into place as soon as anything reads the
+ * changes of the build, such as a publisher, a mailer or the culprits of
+ * the build, which wait for it, and at the latest when the build completes.
+ * A placeholder left behind by a restart of Hudson while the changelog was
+ * being recorded is replaced by a failed changelog when the jobs are loaded.
+ */
+public class BackgroundChangelog
+{
+    private static final Map<AbstractBuild<?, ?>, BackgroundChangelog> PENDING =
+        new HashMap<AbstractBuild<?, ?>, BackgroundChangelog>();
+
+    private final Future<?>    task;
+    private final TaskListener listener;
+    private final ChangelogSummary output;
+    private final File         outputFile;
+    private final File         changelogFile;
+    private boolean            done;
+
+    private BackgroundChangelog(Future<?> task, TaskListener listener, ChangelogSummary output, File outputFile,
+            File changelogFile)
+    {
+        this.task = task;
+        this.listener = listener;
+        this.output = output;
+        this.outputFile = outputFile;
+        this.changelogFile = changelogFile;
+    }
+
+    /**
+     * Register a changelog being recorded for a build.
+     *
+     * @param task the task recording the changelog
+     * @param listener the listener of the build, told when it is waited for
+     * @param output the stream it writes to, closed once the task is done,
+     *        which the indexes of the job are fed from
+     * @param outputFile the file behind that stream
+     * @param changelogFile the changelog file of the build
+     */
+    static void register(AbstractBuild<?, ?> build, Future<?> task, TaskListener listener, ChangelogSummary output,
+            File outputFile, File changelogFile)
+    {
+        synchronized (PENDING)
+        {
+            PENDING.put(build, new BackgroundChangelog(task, listener, output, outputFile, changelogFile));
+        }
+    }
+
+    /**
+     * Wait for the changelog of the build, if any is still being recorded,
+     * and move it into place. Callers wait until it is in place, whichever
+     * of them moves it.
+     */
+    static void await(AbstractBuild<?, ?> build)
+    {
+        BackgroundChangelog pending;
+        synchronized (PENDING)
+        {
+            pending = PENDING.get(build);
+        }
+        if (pending == null)
+            return;
+
+        pending.finish(build);
+        synchronized (PENDING)
+        {
+            PENDING.remove(build);
+        }
+    }
+
+    private synchronized void finish(AbstractBuild<?, ?> build)
+    {
+        if (done)
+            return;
+        done = true;
+
+        listener.getLogger().println("Waiting for the changelog to be recorded");
+        try
+        {
+            task.get();
+            output.close();
+            changelogFile.delete();
+            if (!outputFile.renameTo(changelogFile))
+                throw new IOException("Unable to move " + outputFile + " to " + changelogFile);
+            GitSCM.indexChangelog(build, output);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace(listener.error("Failed to record the changelog"));
+            try
+            {
+                output.close();
+            }
+            catch (IOException ignored)
+            {
+                // the output is discarded anyway
+            }
+            fail(changelogFile, outputFile);
+        }
+    }
+
+    /**
+     * Replace the placeholder, so the build does not show a changelog that
+     * is pending forever.
+     */
+    private static void fail(File changelogFile, File outputFile)
+    {
+        try
+        {
+            outputFile.delete();
+            FileOutputStream fos = new FileOutputStream(changelogFile);
+            try
+            {
+                fos.write("Unable to retrieve changeset".getBytes());
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to replace the pending changelog " + changelogFile, e);
+        }
+    }
+
+    /**
+     * Fail the changelogs of a job still pending from before a restart. Only
+     * the newest builds can have one: those that were running when Hudson
+     * stopped.
+     */
+    static void recover(AbstractProject<?, ?> project)
+    {
+        for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null; build = build.getPreviousBuild())
+        {
+            File changelogFile = new File(build.getRootDir(), "changelog.xml");
+            if (!changelogFile.exists())
+                continue;
+            try
+            {
+                if (!isPlaceholder(changelogFile))
+                    return;
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to read " + changelogFile, e);
+                return;
+            }
+            LOGGER.info("The changelog of " + build + " was being recorded when Hudson stopped");
+            fail(changelogFile, new File(changelogFile.getPath() + ".tmp"));
+        }
+    }
+
+    private static boolean isPlaceholder(File changelogFile) throws IOException
+    {
+        BufferedReader rdr = new BufferedReader(new FileReader(changelogFile));
+        try
+        {
+            return GitChangeLogParser.PENDING.equals(rdr.readLine());
+        }
+        finally
+        {
+            rdr.close();
+        }
+    }
+
+    @Extension
+    public static class CompletionListener extends RunListener<AbstractBuild>
+    {
+        public CompletionListener()
+        {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener)
+        {
+            await(build);
+        }
+    }
+
+    @Extension
+    public static class StartupListener extends ItemListener
+    {
+        @Override
+        public void onLoaded()
+        {
+            for (AbstractProject<?, ?> project : Hudson.getInstance().getAllItems(AbstractProject.class))
+            {
+                if (project.getScm() instanceof GitSCM)
+                    recover(project);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BackgroundChangelog.class.getName());
+}
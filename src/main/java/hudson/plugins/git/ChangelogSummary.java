@@ -0,0 +1,132 @@
+package hudson.plugins.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * Passes a changelog through to its file on the master, picking up the
+ * commits and the paths the indexes of the job need on the way, so that
+ * the changelog is not parsed again to index it.
+ */
+final class ChangelogSummary extends FilterOutputStream
+{
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /**
+     * Whether the current line is worth keeping: only commit and file lines
+     * are, not the messages.
+     */
+    private boolean keep = true;
+    private boolean first = true;
+    private boolean pending;
+
+    private final List<ObjectId> commits = new ArrayList<ObjectId>();
+    private final Set<String>    paths   = new TreeSet<String>();
+
+    ChangelogSummary(OutputStream out)
+    {
+        super(out);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException
+    {
+        out.write(b);
+        scan(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write(b, off, len);
+        for (int i = off; i < off + len; i++)
+        {
+            scan(b[i]);
+        }
+    }
+
+    private void scan(int b)
+    {
+        if (b == '\n')
+        {
+            endLine();
+            return;
+        }
+        if (line.size() == 0 && keep)
+            keep = b == 'c' || b == ':' || first;
+        if (keep)
+            line.write(b);
+    }
+
+    private void endLine()
+    {
+        if (keep && line.size() > 0)
+        {
+            String s = line.toString();
+            if (first && s.equals(GitChangeLogParser.PENDING))
+            {
+                pending = true;
+            }
+            else if (s.startsWith("commit "))
+            {
+                String[] fields = s.split(" ");
+                if (fields.length > 1 && ObjectId.isId(fields[1]))
+                    commits.add(ObjectId.fromString(fields[1]));
+            }
+            else if (s.startsWith(":"))
+            {
+                String path = GitChangeSet.parsePath(s);
+                if (path != null)
+                {
+                    // renames are recorded as "from\tto"
+                    for (String p : path.split("\t"))
+                    {
+                        paths.add(p);
+                    }
+                }
+            }
+        }
+        line.reset();
+        keep = true;
+        first = false;
+    }
+
+    /**
+     * True if only a placeholder was written, the changelog being recorded
+     * in the background.
+     */
+    synchronized boolean isPending()
+    {
+        if (line.size() > 0)
+            endLine();
+        return pending;
+    }
+
+    /**
+     * The commits logged, in the order they were written.
+     */
+    synchronized List<ObjectId> getCommits()
+    {
+        if (line.size() > 0)
+            endLine();
+        return commits;
+    }
+
+    /**
+     * The paths the commits affected, renames giving both paths.
+     */
+    synchronized Set<String> getPaths()
+    {
+        if (line.size() > 0)
+            endLine();
+        return paths;
+    }
+}
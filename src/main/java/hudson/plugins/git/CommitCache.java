@@ -0,0 +1,356 @@
+package hudson.plugins.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of the changelog records of commits on a node, keyed by SHA1, so
+ * that commits shared by several jobs, matrix configurations or branches are
+ * only logged and diffed once. A commit never changes, so entries never need
+ * invalidating; the cache is bounded by an approximate size in bytes and
+ * evicts the least recently used commits.
+ * <p>
+ * The cache is stored as a log of records, the commits added since it was
+ * last saved being appended to it, and is rewritten once most of the
+ * records are of commits since evicted.
+ *
+ * @see GitAPI#changelog(List, java.io.OutputStream, int, int, CommitCache)
+ */
+public class CommitCache
+{
+    /**
+     * Approximate upper bound of the memory (and disk) used by a cache.
+     */
+    public static final long MAX_BYTES = Long.getLong(CommitCache.class.getName() + ".maxBytes", 32L * 1024 * 1024);
+
+    private static final int VERSION = 2;
+
+    /**
+     * Longest log or path a record may hold; a longer one means the file is
+     * damaged.
+     */
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+    private static final Map<File, CommitCache> CACHES = new HashMap<File, CommitCache>();
+
+    /**
+     * The changelog record of a single commit.
+     */
+    public static class Entry
+    {
+        /**
+         * Raw <tt>git log --pretty=raw</tt> output: author, committer and message.
+         */
+        private final String       log;
+
+        /**
+         * Raw <tt>git diff-tree</tt> output lines: the file list.
+         */
+        private final List<String> paths;
+
+        private final long         size;
+
+        public Entry(String log, List<String> paths)
+        {
+            this.log = log;
+            this.paths = Collections.unmodifiableList(paths);
+            long chars = log.length();
+            for (String path : paths)
+            {
+                chars += path.length() + 1;
+            }
+            // two bytes per char, plus object overhead of the entry and its strings
+            this.size = 2 * chars + 64 + 40 * paths.size();
+        }
+
+        public String getLog()
+        {
+            return log;
+        }
+
+        public List<String> getPaths()
+        {
+            return paths;
+        }
+    }
+
+    private final File                      file;
+    private final long                      maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long    bytes;
+    private long    hits;
+    private long    misses;
+    private boolean loaded;
+
+    /**
+     * The commits added since the cache was saved, oldest first.
+     */
+    private final Map<String, Entry> unsaved = new LinkedHashMap<String, Entry>();
+
+    /**
+     * The number of records in the file, and whether it has to be rewritten
+     * rather than appended to, being damaged or of another version.
+     */
+    private int     records;
+    private boolean rewrite;
+
+    CommitCache(File file, long maxBytes)
+    {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the cache stored in the given directory. There is a single
+     * instance per directory in a JVM.
+     */
+    public static CommitCache forDirectory(File dir)
+    {
+        synchronized (CACHES)
+        {
+            CommitCache cache = CACHES.get(dir);
+            if (cache == null)
+            {
+                cache = new CommitCache(new File(dir, "commits.cache"), MAX_BYTES);
+                CACHES.put(dir, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Look up a commit, counting the hit or miss.
+     *
+     * @return the cached record, or null
+     */
+    public synchronized Entry get(String sha1)
+    {
+        load();
+        Entry entry = entries.get(sha1);
+        if (entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    public synchronized void put(String sha1, Entry entry)
+    {
+        load();
+        Entry previous = entries.put(sha1, entry);
+        if (previous != null)
+            bytes -= previous.size;
+        bytes += entry.size;
+        unsaved.put(sha1, entry);
+        evict();
+    }
+
+    private void evict()
+    {
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext();)
+        {
+            bytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized int size()
+    {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * The approximate memory used by the cached commits.
+     */
+    synchronized long getBytes()
+    {
+        load();
+        return bytes;
+    }
+
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != VERSION)
+                {
+                    rewrite = true;
+                    return;
+                }
+                while (true)
+                {
+                    String sha1;
+                    try
+                    {
+                        sha1 = readString(in);
+                    }
+                    catch (EOFException e)
+                    {
+                        break;
+                    }
+                    String log = readString(in);
+                    int pathCount = in.readInt();
+                    if (pathCount < 0)
+                        throw new IOException("Damaged path count " + pathCount);
+                    List<String> paths = new ArrayList<String>(Math.min(pathCount, 1024));
+                    for (int j = 0; j < pathCount; j++)
+                    {
+                        paths.add(readString(in));
+                    }
+                    Entry entry = new Entry(log, paths);
+                    Entry previous = entries.put(sha1, entry);
+                    if (previous != null)
+                        bytes -= previous.size;
+                    bytes += entry.size;
+                    records++;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // keep what was read; the next save rewrites the file
+            LOGGER.log(Level.WARNING, "Damaged commit cache " + file + ", keeping the first " + records + " commits", e);
+            rewrite = true;
+        }
+        evict();
+    }
+
+    /**
+     * Write the commits added since the cache was last saved to disk.
+     */
+    public synchronized void save() throws IOException
+    {
+        if (unsaved.isEmpty())
+            return;
+
+        if (rewrite || records > 2 * entries.size() + 1000)
+        {
+            rewrite();
+        }
+        else
+        {
+            file.getParentFile().mkdirs();
+            boolean created = !file.exists();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            try
+            {
+                if (created)
+                    out.writeInt(VERSION);
+                for (Map.Entry<String, Entry> e : unsaved.entrySet())
+                {
+                    // unless evicted already
+                    if (entries.containsKey(e.getKey()))
+                    {
+                        write(out, e.getKey(), e.getValue());
+                        records++;
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        unsaved.clear();
+    }
+
+    /**
+     * Write every cached commit aside and move the file in place.
+     */
+    private void rewrite() throws IOException
+    {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
+            out.writeInt(VERSION);
+            // least recently used first, so the order survives a reload
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                write(out, e.getKey(), e.getValue());
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        file.delete();
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to move " + tmp + " to " + file);
+        records = entries.size();
+        rewrite = false;
+    }
+
+    private static void write(DataOutputStream out, String sha1, Entry entry) throws IOException
+    {
+        writeString(out, sha1);
+        writeString(out, entry.log);
+        out.writeInt(entry.paths.size());
+        for (String path : entry.paths)
+        {
+            writeString(out, path);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH)
+            throw new IOException("Damaged string length " + length);
+        byte[] buf = new byte[length];
+        in.readFully(buf);
+        return new String(buf, "UTF-8");
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] buf = s.getBytes("UTF-8");
+        out.writeInt(buf.length);
+        out.write(buf);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CommitCache.class.getName());
+}
@@ -0,0 +1,291 @@
+package hudson.plugins.git;
+
+import hudson.model.AbstractProject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * Index from commits to the builds of a job, so that the builds of a commit
+ * can be found without loading the {@link hudson.plugins.git.util.BuildData}
+ * of every build.
+ * <p>
+ * Two things are indexed: the revisions built, as recorded through
+ * {@link hudson.plugins.git.util.IBuildChooser#revisionBuilt}, and the
+ * commits of the changelog of each build, which are the commits a build
+ * contains that its predecessor did not. The index is stored in the job
+ * directory as an append-only file of fixed size records.
+ */
+public class CommitIndex
+{
+    private static final int VERSION = 1;
+
+    private static final byte BUILT = 0;
+    private static final byte CONTAINED = 1;
+
+    private static final int RECORD_SIZE = 1 + Constants.OBJECT_ID_LENGTH + 4;
+
+    private static final Map<File, CommitIndex> INDEXES = new HashMap<File, CommitIndex>();
+
+    private final File file;
+
+    /**
+     * Builds that built a revision, in the order they were recorded.
+     */
+    private final Map<ObjectId, int[]> builtBy = new HashMap<ObjectId, int[]>();
+
+    /**
+     * First build that contained a commit.
+     */
+    private final Map<ObjectId, Integer> firstBuild = new HashMap<ObjectId, Integer>();
+
+    private boolean loaded;
+
+    CommitIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Get the index of a job. There is a single instance per job in a JVM.
+     */
+    public static CommitIndex forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (INDEXES)
+        {
+            CommitIndex index = INDEXES.get(dir);
+            if (index == null)
+            {
+                index = new CommitIndex(new File(dir, "git-commits.index"));
+                INDEXES.put(dir, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Record that a build built a revision.
+     */
+    public synchronized void addBuilt(AnyObjectId sha1, int build) throws IOException
+    {
+        load();
+        int[] builds = builtBy.get(sha1);
+        if (builds != null)
+        {
+            for (int b : builds)
+            {
+                if (b == build)
+                    return;
+            }
+        }
+        append(BUILT, sha1, build);
+        index(BUILT, sha1.copy(), build);
+    }
+
+    /**
+     * Record the commits contained in a build, typically those of its
+     * changelog. Commits already known to be in an earlier build are skipped.
+     */
+    public synchronized void addContained(Collection<? extends AnyObjectId> commits, int build) throws IOException
+    {
+        load();
+        List<AnyObjectId> added = new ArrayList<AnyObjectId>();
+        for (AnyObjectId commit : commits)
+        {
+            Integer first = firstBuild.get(commit);
+            if (first == null || first > build)
+                added.add(commit);
+        }
+        if (added.isEmpty())
+            return;
+
+        DataOutputStream out = open();
+        try
+        {
+            for (AnyObjectId commit : added)
+            {
+                write(out, CONTAINED, commit, build);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        for (AnyObjectId commit : added)
+        {
+            index(CONTAINED, commit.copy(), build);
+        }
+    }
+
+    /**
+     * The numbers of the builds that built a revision.
+     */
+    public synchronized List<Integer> getBuiltBy(AnyObjectId sha1)
+    {
+        load();
+        List<Integer> result = new ArrayList<Integer>();
+        int[] builds = builtBy.get(sha1);
+        if (builds != null)
+        {
+            for (int b : builds)
+            {
+                result.add(b);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of the first build that contained a commit, or -1 if no
+     * indexed build did. The build may since have been deleted.
+     */
+    public synchronized int getFirstBuild(AnyObjectId sha1)
+    {
+        load();
+        Integer first = firstBuild.get(sha1);
+        return first == null ? -1 : first;
+    }
+
+    private void index(byte kind, ObjectId sha1, int build)
+    {
+        if (kind == BUILT)
+        {
+            int[] builds = builtBy.get(sha1);
+            if (builds == null)
+            {
+                builtBy.put(sha1, new int[] { build });
+            }
+            else
+            {
+                int[] grown = new int[builds.length + 1];
+                System.arraycopy(builds, 0, grown, 0, builds.length);
+                grown[builds.length] = build;
+                builtBy.put(sha1, grown);
+            }
+        }
+        // a build contains the revision it built
+        Integer first = firstBuild.get(sha1);
+        if (first == null || first > build)
+            firstBuild.put(sha1, build);
+    }
+
+    private void append(byte kind, AnyObjectId sha1, int build) throws IOException
+    {
+        DataOutputStream out = open();
+        try
+        {
+            write(out, kind, sha1, build);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private DataOutputStream open() throws IOException
+    {
+        boolean created = !file.exists();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (created)
+            out.writeInt(VERSION);
+        return out;
+    }
+
+    private static void write(DataOutputStream out, byte kind, AnyObjectId sha1, int build) throws IOException
+    {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        sha1.copyRawTo(raw, 0);
+        out.writeByte(kind);
+        out.write(raw);
+        out.writeInt(build);
+    }
+
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        try
+        {
+            long length = file.length();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (length < 4 || in.readInt() != VERSION)
+                {
+                    // written by another version: start again
+                    in.close();
+                    file.delete();
+                    return;
+                }
+                byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                long records = (length - 4) / RECORD_SIZE;
+                for (long i = 0; i < records; i++)
+                {
+                    byte kind = in.readByte();
+                    in.readFully(raw);
+                    index(kind, ObjectId.fromRaw(raw), in.readInt());
+                }
+                if (4 + records * RECORD_SIZE != length)
+                    truncate(4 + records * RECORD_SIZE);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (EOFException e)
+        {
+            LOGGER.log(Level.WARNING, "Commit index " + file + " shrank while being read", e);
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Discarding unreadable commit index " + file, e);
+            builtBy.clear();
+            firstBuild.clear();
+            file.delete();
+        }
+    }
+
+    /**
+     * Drop a record cut short by a crash, so that appends stay readable.
+     */
+    private void truncate(long valid) throws IOException
+    {
+        LOGGER.warning("Truncating damaged commit index " + file + " to " + valid + " bytes");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(valid);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CommitIndex.class.getName());
+}
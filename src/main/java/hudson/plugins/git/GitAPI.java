@@ -17,7 +17,10 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +31,7 @@ import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.Tag;
+import org.spearce.jgit.transport.RefSpec;
 import org.spearce.jgit.transport.RemoteConfig;
 
 public class GitAPI implements IGitAPI {
@@ -191,6 +195,112 @@ public class GitAPI implements IGitAPI {
         return ObjectId.fromString(firstLine(result).trim());
     }
 
+    public Map<String, ObjectId> getRemoteReferences(String repository) throws GitException {
+        Map<String, ObjectId> refs = new LinkedHashMap<String, ObjectId>();
+        String result = launchCommand("ls-remote", repository);
+
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+        try {
+            while ((line = rdr.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab == 40)
+                    refs.put(line.substring(41), ObjectId.fromString(line.substring(0, 40)));
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing remote references", e);
+        }
+
+        return refs;
+    }
+
+    public boolean isCommitInRepo(ObjectId commit) throws GitException {
+        try {
+            launchCommand("cat-file", "-e", commit.name() + "^{commit}");
+            return true;
+        } catch (GitException e) {
+            return false;
+        }
+    }
+
+    public List<String> getModifiedFiles() throws GitException {
+        // Files only touched must not look modified
+        try {
+            launchCommand("update-index", "-q", "--refresh");
+        } catch (GitException e) {
+            // The files needing an update are listed below
+        }
+
+        List<String> files = new ArrayList<String>();
+        String result = launchCommand("diff-index", "HEAD");
+
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+        try {
+            while ((line = rdr.readLine()) != null) {
+                // :<old mode> <new mode> <old sha1> <new sha1> <status>\t<path>
+                int tab = line.indexOf('\t');
+                if (tab < 0)
+                    continue;
+                String[] entry = line.substring(1, tab).split(" ");
+                if (!"160000".equals(entry[0]) && !"160000".equals(entry[1]))
+                    files.add(line.substring(tab + 1));
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing diff index", e);
+        }
+
+        return files;
+    }
+
+    public Map<ObjectId, Long> getCommitTimes(Collection<ObjectId> commits) throws GitException {
+        Map<ObjectId, Long> times = new HashMap<ObjectId, Long>();
+        if (commits.isEmpty())
+            return times;
+
+        ArgumentListBuilder args = new ArgumentListBuilder("log", "--no-walk", "--pretty=format:%H %ct");
+        for (ObjectId commit : commits)
+            args.add(commit.name());
+        String result = launchCommand(args);
+
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+        try {
+            while ((line = rdr.readLine()) != null) {
+                if (line.length() > 41)
+                    times.put(ObjectId.fromString(line.substring(0, 40)), Long.parseLong(line.substring(41).trim()) * 1000);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing commit times", e);
+        }
+
+        return times;
+    }
+
+    public Map<String, Character> getSubmoduleStates() throws GitException {
+        Map<String, Character> states = new LinkedHashMap<String, Character>();
+        String result = launchCommand("submodule", "status");
+
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+        try {
+            while ((line = rdr.readLine()) != null) {
+                // <state><sha1> <path>[ (<description>)]
+                if (line.length() < 43)
+                    continue;
+                String path = line.substring(42);
+                int description = path.lastIndexOf(" (");
+                if (description > 0 && path.endsWith(")"))
+                    path = path.substring(0, description);
+                states.put(path, line.charAt(0));
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing submodule status", e);
+        }
+
+        return states;
+    }
+
     public String describe(String commitIsh) throws GitException {
         String result = launchCommand("describe", "--tags", commitIsh);
         return firstLine(result).trim();
@@ -255,14 +365,83 @@ public class GitAPI implements IGitAPI {
     }
 
     public void changelog(String revFrom, String revTo, OutputStream fos) throws GitException {
+        changelog(revFrom, revTo, fos, 0, 0);
+    }
+
+    /**
+     * Write the changelog between two revisions, recording at most
+     * <tt>maxCommits</tt> commits (newest first) and <tt>maxPaths</tt> paths
+     * per commit. Anything beyond the limits is replaced by a summary line
+     * carrying the totals. A limit of 0 means unlimited.
+     */
+    public void changelog(String revFrom, String revTo, OutputStream fos, int maxCommits, int maxPaths)
+            throws GitException {
         //log(revFrom, revTo, fos, "--name-status", "-M", "--summary", "--pretty=raw");
-        List<String> commits = getChangeLogCommits(revFrom, revTo);
+        changelog(getChangeLogCommits(revFrom, revTo), fos, maxCommits, maxPaths);
+    }
+
+    /**
+     * Write the changelog of the given commits, in the given order, with the
+     * same limits as {@link #changelog(String, String, OutputStream, int, int)}.
+     */
+    public void changelog(List<String> commits, OutputStream fos, int maxCommits, int maxPaths)
+            throws GitException {
+        changelog(commits, fos, maxCommits, maxPaths, null);
+    }
+
+    /**
+     * Write the changelog of the given commits, answering commits found in
+     * the cache without invoking git.
+     *
+     * @param cache cache of commit records, may be null
+     */
+    public void changelog(List<String> commits, OutputStream fos, int maxCommits, int maxPaths,
+            CommitCache cache) throws GitException {
+        int logged = 0;
+        int hits = 0;
         for (String commit : commits) {
-            logCommit(commit, fos);
+            if (maxCommits > 0 && logged >= maxCommits) {
+                break;
+            }
+            if (cache == null) {
+                logCommit(commit, fos, maxPaths);
+            } else {
+                CommitCache.Entry entry = cache.get(commit);
+                if (entry == null) {
+                    entry = readCommit(commit);
+                    cache.put(commit, entry);
+                } else {
+                    hits++;
+                }
+                writeCommit(entry, fos, maxPaths);
+            }
+            logged++;
+        }
+
+        if (logged < commits.size()) {
+            writeLine(fos, GitChangeLogParser.OMITTED_COMMITS + (commits.size() - logged) + " " + commits.size());
+        }
+
+        if (cache != null) {
+            listener.getLogger().println("Commit cache: " + hits + " hits, " + (logged - hits) + " misses"
+                    + " (" + cache.getHits() + " hits, " + cache.getMisses() + " misses on this node)");
+            try {
+                cache.save();
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to save the commit cache"));
+            }
         }
     }
 
-    private List<String> getChangeLogCommits(String revFrom, String revTo) throws GitException {
+    private void writeLine(OutputStream fos, String line) throws GitException {
+        try {
+            fos.write((line + "\n").getBytes());
+        } catch (IOException e) {
+            throw new GitException("Error writing change log", e);
+        }
+    }
+
+    public List<String> getChangeLogCommits(String revFrom, String revTo) throws GitException {
         ByteArrayOutputStream commitStream = new ByteArrayOutputStream();
         log(revFrom, revTo, commitStream, "--pretty=format:%H"); // just the sha1
         BufferedReader commitReader = new BufferedReader(new StringReader(commitStream.toString()));
@@ -284,11 +463,56 @@ public class GitAPI implements IGitAPI {
         return commits;
     }
 
-    private void logCommit(String commit, OutputStream fos) throws GitException {
+    private void logCommit(String commit, OutputStream fos, int maxPaths) throws GitException {
+        if (maxPaths > 0) {
+            // Only a single commit is buffered, so that its paths can be
+            // cut down to the limit before they go into the change log.
+            writeCommit(readCommit(commit), fos, maxPaths);
+            return;
+        }
         log(null, commit, fos, "-M", "--summary", "--pretty=raw", "-n", "1");
         treeDiff(commit, fos, "-M", "-r"); // Detect renames, recursive
     }
 
+    private CommitCache.Entry readCommit(String commit) throws GitException {
+        ByteArrayOutputStream logStream = new ByteArrayOutputStream();
+        log(null, commit, logStream, "-M", "--summary", "--pretty=raw", "-n", "1");
+
+        ByteArrayOutputStream diffStream = new ByteArrayOutputStream();
+        treeDiff(commit, diffStream, "-M", "-r"); // Detect renames, recursive
+        BufferedReader diffReader = new BufferedReader(new StringReader(diffStream.toString()));
+        List<String> paths = new ArrayList<String>();
+        try {
+            String line;
+            while ((line = diffReader.readLine()) != null) {
+                paths.add(line);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing diff-tree", e);
+        }
+
+        return new CommitCache.Entry(logStream.toString(), paths);
+    }
+
+    private void writeCommit(CommitCache.Entry commit, OutputStream fos, int maxPaths) throws GitException {
+        int paths = 0;
+        try {
+            fos.write(commit.getLog().getBytes());
+            for (String line : commit.getPaths()) {
+                if (maxPaths > 0 && line.startsWith(":") && ++paths > maxPaths) {
+                    continue;
+                }
+                fos.write((line + "\n").getBytes());
+            }
+        } catch (IOException e) {
+            throw new GitException("Error writing change log", e);
+        }
+
+        if (maxPaths > 0 && paths > maxPaths) {
+            writeLine(fos, GitChangeSet.OMITTED_PATHS + (paths - maxPaths) + " " + paths);
+        }
+    }
+
     /**
      * Merge any changes into the head.
      *
@@ -467,8 +691,12 @@ public class GitAPI implements IGitAPI {
     }
 
     public List<IndexEntry> lsTree(String treeIsh) throws GitException {
+        return lsTree(treeIsh, false);
+    }
+
+    public List<IndexEntry> lsTree(String treeIsh, boolean recursive) throws GitException {
         List<IndexEntry> entries = new ArrayList<IndexEntry>();
-        String result = launchCommand("ls-tree", treeIsh);
+        String result = recursive ? launchCommand("ls-tree", "-r", treeIsh) : launchCommand("ls-tree", treeIsh);
 
         BufferedReader rdr = new BufferedReader(new StringReader(result));
         String line;
@@ -513,6 +741,35 @@ public class GitAPI implements IGitAPI {
         return entries;
     }
 
+    public Map<ObjectId, List<ObjectId>> revListParents(Collection<ObjectId> commits) throws GitException {
+        Map<ObjectId, List<ObjectId>> parents = new LinkedHashMap<ObjectId, List<ObjectId>>();
+        if (commits.isEmpty())
+            return parents;
+        ArgumentListBuilder args = new ArgumentListBuilder("rev-list", "--parents", "--topo-order");
+        for (ObjectId commit : commits) {
+            args.add(commit.name());
+        }
+        String result = launchCommand(args);
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+
+        try {
+            while ((line = rdr.readLine()) != null) {
+                // the commit followed by its parents
+                String[] ids = line.trim().split(" ");
+                List<ObjectId> list = new ArrayList<ObjectId>(ids.length - 1);
+                for (int i = 1; i < ids.length; i++) {
+                    list.add(ObjectId.fromString(ids[i]));
+                }
+                parents.put(ObjectId.fromString(ids[0]), list);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing rev list", e);
+        }
+
+        return parents;
+    }
+
     public void add(String filePattern) throws GitException {
         try {
             launchCommand("add", filePattern);
@@ -544,6 +801,36 @@ public class GitAPI implements IGitAPI {
 
     }
 
+    public void prune(RemoteConfig remoteRepository) throws GitException
+    {
+        // Same single URL / refspec as fetch
+        RefSpec spec = remoteRepository.getFetchRefSpecs().get(0);
+        if (spec.getDestination() == null)
+            return;
+
+        Set<String> fetched = new HashSet<String>();
+        for (String ref : getRemoteReferences(remoteRepository.getURIs().get(0).toString()).keySet()) {
+            if (spec.matchSource(ref))
+                fetched.add(spec.expandFromSource(ref).getDestination());
+        }
+
+        String result = launchCommand("for-each-ref", "--format=%(refname)");
+        BufferedReader rdr = new BufferedReader(new StringReader(result));
+        String line;
+        try {
+            while ((line = rdr.readLine()) != null) {
+                String ref = line.trim();
+                // the remote HEAD is a symbolic reference to one of the others
+                if (ref.endsWith("/" + Constants.HEAD) || !spec.matchDestination(ref) || fetched.contains(ref))
+                    continue;
+                listener.getLogger().println("Pruning " + ref + ", deleted from " + remoteRepository.getName());
+                launchCommand("update-ref", "--no-deref", "-d", ref);
+            }
+        } catch (IOException e) {
+            throw new GitException("Error parsing references", e);
+        }
+    }
+
     public ObjectId mergeBase(ObjectId id1, ObjectId id2)
     {
         try {
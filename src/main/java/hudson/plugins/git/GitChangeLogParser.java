@@ -8,7 +8,9 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.xml.sax.SAXException;
 
@@ -17,6 +19,30 @@ import org.xml.sax.SAXException;
  * @author Nigel Magnay
  */
 public class GitChangeLogParser extends ChangeLogParser {
+
+	/**
+	 * Prefix of the summary line recorded when commits were left out of the
+	 * changelog, followed by the number omitted and the total.
+	 */
+	static final String OMITTED_COMMITS = "omitted-commits ";
+
+	/**
+	 * First line of a changelog that is still being recorded in the
+	 * background. Only the branch headers follow it.
+	 */
+	static final String PENDING = "changelog-pending";
+
+	/**
+	 * Header line starting the list of commits of one branch.
+	 */
+	static final String BRANCH_HEADER = "Changes in branch ";
+
+	/**
+	 * Reference from the current branch to a commit logged once further
+	 * down in the changelog.
+	 */
+	static final String BRANCH_COMMIT = "branch-commit ";
+
 	public GitChangeSetList parse(AbstractBuild build, File changelogFile)
 			throws IOException, SAXException {
 
@@ -32,8 +58,32 @@ public class GitChangeLogParser extends ChangeLogParser {
 		// We use the null value to determine whether at least one commit was
 		// present in the changelog. If it stays null, there is no commit line.
 		List<String> lines = null;
+		int omittedCommits = 0;
+		String branch = null;
+		Map<String, List<String>> branchesByCommit = new HashMap<String, List<String>>();
 
 		while ((line = rdr.readLine()) != null) {
+			if (line.equals(PENDING)) {
+				return new GitChangeSetList(build, changelogFile);
+			}
+			if (line.startsWith(OMITTED_COMMITS)) {
+				omittedCommits += GitChangeSet.parseCount(line.substring(OMITTED_COMMITS.length()));
+				continue;
+			}
+			if (line.startsWith(BRANCH_HEADER)) {
+				int end = line.indexOf(", between ");
+				branch = line.substring(BRANCH_HEADER.length(), end == -1 ? line.length() : end);
+			}
+			if (line.startsWith(BRANCH_COMMIT) && branch != null) {
+				String commit = line.substring(BRANCH_COMMIT.length()).trim();
+				List<String> branches = branchesByCommit.get(commit);
+				if (branches == null) {
+					branches = new ArrayList<String>(1);
+					branchesByCommit.put(commit, branches);
+				}
+				branches.add(branch);
+				continue;
+			}
 			if (line.startsWith("commit ")) {
 				if (lines != null) {
 					r.add(parseCommit(lines));
@@ -49,7 +99,13 @@ public class GitChangeLogParser extends ChangeLogParser {
 			r.add(parseCommit(lines));
 		}
 
-		return new GitChangeSetList(build, r);
+		for (GitChangeSet changeSet : r) {
+			List<String> branches = branchesByCommit.get(changeSet.getId());
+			if (branches != null)
+				changeSet.setBranches(branches);
+		}
+
+		return new GitChangeSetList(build, r, omittedCommits);
 		}
     finally
     {
@@ -1,17 +1,15 @@
 package hudson.plugins.git;
 
-import static hudson.Util.fixEmpty;
 import hudson.model.User;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.AffectedFile;
 import hudson.scm.EditType;
-import hudson.tasks.Mailer;
 
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
-import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -25,13 +23,23 @@ public class GitChangeSet extends ChangeLogSet.Entry {
 
     private static final Pattern FILE_LOG_ENTRY = Pattern.compile("^:[0-9]{6} [0-9]{6} ([0-9a-f]{40}) ([0-9a-f]{40}) ([ACDMRTUX])(?>[0-9]+)?\t(.*)$");
     private static final String NULL_HASH = "0000000000000000000000000000000000000000";
+
+    /**
+     * Prefix of the summary line recorded when paths of a commit were left
+     * out of the changelog, followed by the number omitted and the total.
+     */
+    static final String OMITTED_PATHS = "omitted-paths ";
+
     private String author;
     private String authorEmail;
+    private User authorUser;
     private String comment;
     private String title;
     private String id;
     private String parentCommit;
     private Collection<Path> paths = new HashSet<Path>();
+    private int omittedPaths;
+    private Collection<String> branches = Collections.emptyList();
 
     public GitChangeSet(List<String> lines) {
         if (lines.size() > 0) {
@@ -56,6 +64,8 @@ public class GitChangeSet extends ChangeLogSet.Entry {
                 } else if (line.startsWith("author ")) {
                 } else if (line.startsWith("    ")) {
                     message += line.substring(4) + "\n";
+                } else if (line.startsWith(OMITTED_PATHS)) {
+                    this.omittedPaths += parseCount(line.substring(OMITTED_PATHS.length()));
                 } else if (':' == line.charAt(0)) {
                     Matcher fileMatcher = FILE_LOG_ENTRY.matcher(line);
                     if (fileMatcher.matches() && fileMatcher.groupCount() >= 4) {
@@ -88,10 +98,34 @@ public class GitChangeSet extends ChangeLogSet.Entry {
         }
     }
 
+    /**
+     * The path of a file line of a commit, "from\tto" for a rename, or null
+     * if the line is not one.
+     */
+    static String parsePath(String line) {
+        Matcher fileMatcher = FILE_LOG_ENTRY.matcher(line);
+        if (fileMatcher.matches() && fileMatcher.groupCount() >= 4 && fileMatcher.group(3).length() == 1) {
+            return fileMatcher.group(4);
+        }
+        return null;
+    }
+
     private String parseHash(String hash) {
         return NULL_HASH.equals(hash) ? null : hash;
     }
 
+    /**
+     * Parse the leading count of an omitted-entries summary line.
+     */
+    static int parseCount(String summary) {
+        String[] fields = summary.trim().split(" ");
+        try {
+            return Integer.parseInt(fields[0]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public void setParent(ChangeLogSet parent) {
         super.setParent(parent);
@@ -105,6 +139,25 @@ public class GitChangeSet extends ChangeLogSet.Entry {
         return this.paths;
     }
 
+    /**
+     * Names of the branches of the build that this commit was recorded for.
+     */
+    public Collection<String> getBranches() {
+        return this.branches;
+    }
+
+    /*package*/ void setBranches(Collection<String> branches) {
+        this.branches = branches;
+    }
+
+    /**
+     * Number of paths of this commit that were left out of the changelog
+     * because of the configured limit.
+     */
+    public int getOmittedPaths() {
+        return this.omittedPaths;
+    }
+
     @Override
     @Exported
     public Collection<String> getAffectedPaths() {
@@ -122,18 +175,10 @@ public class GitChangeSet extends ChangeLogSet.Entry {
             throw new RuntimeException("No author in this changeset!");
         }
 
-        User user = User.get(this.author, true);
-
-        // set email address for user if needed
-        if (fixEmpty(this.authorEmail) != null && user.getProperty(Mailer.UserProperty.class) == null) {
-            try {
-                user.addProperty(new Mailer.UserProperty(this.authorEmail));
-            } catch (IOException e) {
-                // ignore error
-            }
+        if (this.authorUser == null) {
+            this.authorUser = AuthorCache.resolve(this.author, this.authorEmail);
         }
-
-        return user;
+        return this.authorUser;
     }
 
     @Override
@@ -160,6 +205,11 @@ public class GitChangeSet extends ChangeLogSet.Entry {
         private String path;
         private GitChangeSet changeSet;
 
+        /**
+         * Links of this path, cached by {@link GitRepositoryBrowser}.
+         */
+        volatile GitRepositoryBrowser.PathLinks links;
+
         private Path(String source, String destination, char action, String filePath, GitChangeSet changeSet) {
             this.src = source;
             this.dst = destination;
@@ -1,36 +1,272 @@
 package hudson.plugins.git;
 
 import hudson.scm.ChangeLogSet;
+import hudson.scm.RepositoryBrowser;
 import hudson.model.AbstractBuild;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.xml.sax.SAXException;
 
 /**
  * List of changeset that went into a particular build.
  * @author Nigel Magnay
  */
 public class GitChangeSetList extends ChangeLogSet<GitChangeSet> {
-    private final List<GitChangeSet> changeSets;
+    /**
+     * Number of changesets shown per page of the change views.
+     */
+    public static final int PAGE_SIZE = 50;
+
+    /**
+     * Number of paths of a changeset rendered with the page. The rest are
+     * loaded on demand through {@link #doPaths(StaplerRequest, StaplerResponse)}.
+     */
+    public static final int INLINE_PATHS = 20;
+
+    /**
+     * Maximum number of paths returned by a single paths request.
+     */
+    public static final int PATHS_PER_REQUEST = 500;
+
+    private List<GitChangeSet> changeSets;
+    private int omittedCommits;
+
+    /**
+     * Changelog file that is still being recorded in the background, or null
+     * once the changelog has been loaded. Cleared after the changesets are
+     * swapped in, so that a reader that sees it cleared sees them.
+     */
+    private volatile File pendingChangelogFile;
 
     /*package*/ GitChangeSetList(AbstractBuild build, List<GitChangeSet> logs) {
+        this(build, logs, 0);
+    }
+
+    /*package*/ GitChangeSetList(AbstractBuild build, List<GitChangeSet> logs, int omittedCommits) {
         super(build);
+        this.omittedCommits = omittedCommits;
         Collections.reverse(logs);  // put new things first
         this.changeSets = Collections.unmodifiableList(logs);
         for (GitChangeSet log : logs)
             log.setParent(this);
     }
 
+    /**
+     * Placeholder for a changelog that is still being recorded. It is loaded
+     * from the file on first access after recording has finished.
+     */
+    /*package*/ GitChangeSetList(AbstractBuild build, File pendingChangelogFile) {
+        super(build);
+        this.changeSets = Collections.emptyList();
+        this.pendingChangelogFile = pendingChangelogFile;
+    }
+
+    /**
+     * True while the changelog of the build is still being recorded. Does not
+     * wait for it, so that the pages of a running build can say so.
+     */
+    public boolean isPending() {
+        File file = pendingChangelogFile;
+        if (file == null)
+            return false;
+
+        GitChangeSetList recorded = null;
+        try {
+            if (isStillPending(file))
+                return true;
+            recorded = new GitChangeLogParser().parse(build, file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load changelog " + file, e);
+        } catch (SAXException e) {
+            LOGGER.log(Level.WARNING, "Failed to load changelog " + file, e);
+        }
+
+        // only the swap holds the lock; the first thread to get there wins
+        synchronized (this) {
+            if (pendingChangelogFile != file)
+                return false;
+            if (recorded != null) {
+                this.omittedCommits = recorded.omittedCommits;
+                this.changeSets = recorded.changeSets;
+                for (GitChangeSet log : changeSets)
+                    log.setParent(this);
+            }
+            pendingChangelogFile = null;
+        }
+        return false;
+    }
+
+    /**
+     * Wait for the changelog still being recorded, if any, and load it, so
+     * that whatever reads the changes of the build gets all of them. The
+     * wait holds no lock, so asking whether the changelog is pending never
+     * waits for it.
+     */
+    private void awaitRecorded() {
+        if (pendingChangelogFile == null)
+            return;
+        BackgroundChangelog.await(build);
+        isPending();
+    }
+
+    private static boolean isStillPending(File changelogFile) throws IOException {
+        BufferedReader rdr = new BufferedReader(new FileReader(changelogFile));
+        try {
+            return GitChangeLogParser.PENDING.equals(rdr.readLine());
+        } finally {
+            rdr.close();
+        }
+    }
+
+    /**
+     * False while the changelog is being recorded, as changes are expected.
+     */
     public boolean isEmptySet() {
-        return changeSets.isEmpty();
+        return !isPending() && changeSets.isEmpty();
     }
 
     public Iterator<GitChangeSet> iterator() {
+        awaitRecorded();
         return changeSets.iterator();
     }
 
     public List<GitChangeSet> getLogs() {
+        awaitRecorded();
         return changeSets;
     }
+
+    /**
+     * Number of commits that were left out of the changelog because of the
+     * configured limit.
+     */
+    public int getOmittedCommits() {
+        awaitRecorded();
+        return omittedCommits;
+    }
+
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
+    public int getInlinePaths() {
+        return INLINE_PATHS;
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (getLogs().size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * Parse a page number request parameter, falling back to the first page.
+     */
+    public int parsePage(String page) {
+        if (page == null)
+            return 0;
+        try {
+            return Math.max(0, Math.min(Integer.parseInt(page), getPageCount() - 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The changesets shown on the given page.
+     */
+    public List<GitChangeSet> getPage(int page) {
+        List<GitChangeSet> logs = getLogs();
+        int from = Math.min(page * PAGE_SIZE, logs.size());
+        return logs.subList(from, Math.min(from + PAGE_SIZE, logs.size()));
+    }
+
+    /**
+     * The first paths of a changeset, rendered with the page.
+     */
+    public List<GitChangeSet.Path> getInlinePaths(GitChangeSet changeSet) {
+        List<GitChangeSet.Path> paths = new ArrayList<GitChangeSet.Path>(INLINE_PATHS);
+        for (GitChangeSet.Path path : changeSet.getPaths()) {
+            if (paths.size() == INLINE_PATHS)
+                break;
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Paths of a changeset as JSON, for the paths that are not rendered with
+     * the page. Takes the index of the changeset and the index of the first
+     * path, and returns at most {@link #PATHS_PER_REQUEST} paths together
+     * with the number of paths remaining after them.
+     */
+    public void doPaths(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int index;
+        int from;
+        try {
+            index = Integer.parseInt(req.getParameter("changeset"));
+            from = Math.max(0, Integer.parseInt(req.getParameter("from")));
+        } catch (NumberFormatException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        List<GitChangeSet> logs = getLogs();
+        if (index < 0 || index >= logs.size()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        GitChangeSet changeSet = logs.get(index);
+
+        RepositoryBrowser<?> browser = build.getProject().getScm().getEffectiveBrowser();
+        GitRepositoryBrowser gitBrowser = browser instanceof GitRepositoryBrowser ? (GitRepositoryBrowser) browser : null;
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"paths\":[");
+        int i = 0;
+        int written = 0;
+        for (GitChangeSet.Path path : changeSet.getPaths()) {
+            if (i++ < from)
+                continue;
+            if (written == PATHS_PER_REQUEST)
+                break;
+            if (written++ > 0)
+                w.print(',');
+            w.print("{\"path\":");
+            w.print(JSONUtils.quote(path.getPath()));
+            w.print(",\"editType\":");
+            w.print(JSONUtils.quote(path.getEditType().getName()));
+            if (gitBrowser != null) {
+                String file = gitBrowser.getFileLinkString(path);
+                String diff = gitBrowser.getDiffLinkString(path);
+                if (file != null) {
+                    w.print(",\"file\":");
+                    w.print(JSONUtils.quote(file));
+                }
+                if (diff != null) {
+                    w.print(",\"diff\":");
+                    w.print(JSONUtils.quote(diff));
+                }
+            }
+            w.print('}');
+        }
+        w.print("],\"remaining\":");
+        w.print(Math.max(0, changeSet.getPaths().size() - from - written));
+        w.print('}');
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GitChangeSetList.class.getName());
 }
@@ -1,4 +1,6 @@
 package hudson.plugins.git;
+import hudson.plugins.git.util.Interner;
+
 import java.io.Serializable;
 
 import org.kohsuke.stapler.export.Exported;
@@ -31,4 +33,13 @@ public class GitObject implements Serializable {
 	public String getSHA1String() {
 		return sha1.name();
 	}
+
+	/**
+	 * Share the name and SHA1 with the other objects loaded.
+	 */
+	protected Object readResolve() {
+		name = Interner.name(name);
+		sha1 = Interner.id(sha1);
+		return this;
+	}
 }
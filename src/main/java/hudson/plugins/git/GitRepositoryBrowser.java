@@ -27,5 +27,65 @@ public abstract class GitRepositoryBrowser extends RepositoryBrowser<GitChangeSe
      */
     public abstract URL getFileLink(GitChangeSet.Path path) throws IOException;
 
+    /**
+     * Same as {@link #getDiffLink(GitChangeSet.Path)}, as a string. The link
+     * is computed once and cached with the parsed changelog, so rendering
+     * the change views again does not rebuild it.
+     */
+    public String getDiffLinkString(GitChangeSet.Path path) throws IOException {
+        return links(path).diff;
+    }
+
+    /**
+     * Same as {@link #getFileLink(GitChangeSet.Path)}, as a string, cached
+     * like {@link #getDiffLinkString(GitChangeSet.Path)}.
+     */
+    public String getFileLinkString(GitChangeSet.Path path) throws IOException {
+        return links(path).file;
+    }
+
+    /**
+     * Computes the diff link of a path for {@link #getDiffLinkString(GitChangeSet.Path)}.
+     * Browsers that can build the link without a {@link URL} should override this.
+     */
+    protected String createDiffLink(GitChangeSet.Path path) throws IOException {
+        URL url = getDiffLink(path);
+        return url == null ? null : url.toExternalForm();
+    }
+
+    /**
+     * Computes the file link of a path for {@link #getFileLinkString(GitChangeSet.Path)}.
+     * Browsers that can build the link without a {@link URL} should override this.
+     */
+    protected String createFileLink(GitChangeSet.Path path) throws IOException {
+        URL url = getFileLink(path);
+        return url == null ? null : url.toExternalForm();
+    }
+
+    private PathLinks links(GitChangeSet.Path path) throws IOException {
+        PathLinks links = path.links;
+        // a reconfigured job has a new browser, whose links may differ
+        if (links == null || links.browser != this) {
+            links = new PathLinks(this, createFileLink(path), createDiffLink(path));
+            path.links = links;
+        }
+        return links;
+    }
+
+    /**
+     * The links of a path, for a given browser.
+     */
+    static final class PathLinks {
+        final GitRepositoryBrowser browser;
+        final String file;
+        final String diff;
+
+        PathLinks(GitRepositoryBrowser browser, String file, String diff) {
+            this.browser = browser;
+            this.file = file;
+            this.diff = diff;
+        }
+    }
+
     private static final long serialVersionUID = 1L;
 }
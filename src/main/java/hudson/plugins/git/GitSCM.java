@@ -13,33 +13,57 @@ import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
 import hudson.plugins.git.browser.GitWeb;
+import hudson.plugins.git.opt.BuildDataOptions;
+import hudson.plugins.git.opt.ChangelogOptions;
 import hudson.plugins.git.opt.PreBuildMergeOptions;
+import hudson.plugins.git.opt.SchedulingOptions;
 import hudson.plugins.git.util.*;
+import hudson.remoting.RemoteOutputStream;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.ChangeLogParser;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
+import hudson.triggers.SCMTrigger;
 import hudson.util.FormFieldValidator;
 import hudson.util.FormValidation;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -82,6 +106,21 @@ public class GitSCM extends SCM implements Serializable {
 	 */
 	private PreBuildMergeOptions mergeOptions;
 
+	/**
+	 * Options for recording the changelog.
+	 */
+	private ChangelogOptions changelogOptions;
+
+	/**
+	 * Options for pruning the build data.
+	 */
+	private BuildDataOptions buildDataOptions;
+
+	/**
+	 * Options for scheduling builds when polling.
+	 */
+	private SchedulingOptions schedulingOptions;
+
     private boolean doGenerateSubmoduleConfigurations;
 
 	private boolean clean;
@@ -89,14 +128,27 @@ public class GitSCM extends SCM implements Serializable {
     private String choosingStrategy = DEFAULT;
     public static final String DEFAULT = "Default";
     public static final String GERRIT = "Gerrit";
+    public static final String PRIORITY = "Priority";
 
     private GitWeb browser;
 
 	private Collection<SubmoduleConfig> submoduleCfg;
 
+    /**
+     * Size of the buffer used on the workspace side when streaming the
+     * changelog back to the changelog file, so that git output is sent
+     * over the channel in reasonably sized chunks.
+     */
+    private static final int CHANGELOG_BUFFER_SIZE = 64 * 1024;
+
     public static final String GIT_BRANCH = "GIT_BRANCH";
     public static final String GIT_COMMIT = "GIT_COMMIT";
 
+    /**
+     * Parameter holding the revision a build was scheduled to build.
+     */
+    public static final String GIT_REVISION = "GIT_REVISION";
+
     public Collection<SubmoduleConfig> getSubmoduleCfg() {
 		return submoduleCfg;
 	}
@@ -113,7 +165,10 @@ public class GitSCM extends SCM implements Serializable {
             boolean doGenerateSubmoduleConfigurations,
             Collection<SubmoduleConfig> submoduleCfg,
             boolean clean,
-            String choosingStrategy, GitWeb browser) {
+            String choosingStrategy, GitWeb browser,
+            ChangelogOptions changelogOptions,
+            BuildDataOptions buildDataOptions,
+            SchedulingOptions schedulingOptions) {
 
 		// normalization
 	    this.branches = branches;
@@ -122,6 +177,9 @@ public class GitSCM extends SCM implements Serializable {
 		this.browser = browser;
 
 		this.mergeOptions = mergeOptions;
+		this.changelogOptions = changelogOptions;
+		this.buildDataOptions = buildDataOptions;
+		this.schedulingOptions = schedulingOptions;
 
 		this.doGenerateSubmoduleConfigurations = doGenerateSubmoduleConfigurations;
 		this.submoduleCfg = submoduleCfg;
@@ -171,6 +229,21 @@ public class GitSCM extends SCM implements Serializable {
           }
        }
 
+       if( changelogOptions == null )
+       {
+           changelogOptions = new ChangelogOptions();
+       }
+
+       if( buildDataOptions == null )
+       {
+           buildDataOptions = new BuildDataOptions();
+       }
+
+       if( schedulingOptions == null )
+       {
+           schedulingOptions = new SchedulingOptions();
+       }
+
        if( mergeOptions.doMerge() && mergeOptions.getMergeRemote() == null )
        {
            mergeOptions.setMergeRemote(remoteRepositories.get(0));
@@ -216,12 +289,23 @@ public class GitSCM extends SCM implements Serializable {
             return null;
 
         // substitute build parameters if available
-        ParametersAction parameters = build.getAction(ParametersAction.class);
+        ParametersAction parameters = build == null ? null : build.getAction(ParametersAction.class);
         if (parameters != null)
             branch = parameters.substitute(build, branch);
         return branch;
     }
 
+    /**
+     * The single branch to poll, without loading the last build: its
+     * parameters were substituted when it recorded the poll state.
+     */
+    private String getSingleBranch(PollState state) {
+        String branch = getSingleBranch((AbstractBuild<?, ?>) null);
+        if (branch != null && branch.contains("$") && state.getSingleBranch() != null)
+            return state.getSingleBranch();
+        return branch;
+    }
+
 
 	@Override
 	public boolean pollChanges(final AbstractProject project, Launcher launcher,
@@ -233,32 +317,61 @@ public class GitSCM extends SCM implements Serializable {
 		final String gitExe = getDescriptor().getGitExe();
         listener.getLogger().println("Using strategy: " + choosingStrategy);
 
-		AbstractBuild lastBuild = (AbstractBuild)project.getLastBuild();
-
-        if( lastBuild != null )
+        // The poll state saves loading build records; jobs that have not
+        // built since it was introduced fall back to walking the builds.
+        PollState state = PollState.get(project);
+        final BuildData buildData;
+        final String singleBranch;
+        if (state != null)
         {
-            listener.getLogger().println("[poll] Last Build : #" + lastBuild.getNumber() );
+            listener.getLogger().println("[poll] Last Build : #" + state.getBuildNumber() );
+            buildData = state.getBuildData();
+            singleBranch = getSingleBranch(state);
         }
+        else
+        {
+            AbstractBuild lastBuild = (AbstractBuild)project.getLastBuild();
+
+            if( lastBuild != null )
+            {
+                listener.getLogger().println("[poll] Last Build : #" + lastBuild.getNumber() );
+            }
 
-        final BuildData buildData = getBuildData(lastBuild, false);
+            buildData = getBuildData(lastBuild, false);
+            singleBranch = getSingleBranch(lastBuild);
+        }
 
         if( buildData != null && buildData.lastBuild != null)
         {
             listener.getLogger().println("[poll] Last Built Revision: " + buildData.lastBuild.revision );
         }
+        final BuildData workspaceData = buildData == null ? null : buildData.forChannel(workspace.getChannel());
 
-        final String singleBranch = getSingleBranch(lastBuild);
+        // the revision queue only needs the branches that moved since the last poll
+        final boolean queueing = useRevisionQueue();
+        RevisionQueue queue = queueing ? RevisionQueue.forProject(project) : null;
+        final Map<String, ObjectId> previousHeads = queueing ? queue.getHeads() : null;
+        final boolean wasQueued = queueing && queue.getDepth() > 0;
 
-		boolean pollChangesResult = workspace.act(new FileCallable<Boolean>() {
+        // the Gerrit batches start after the last commit they verified
+        final boolean batching = useGerritBatches();
+        final ObjectId batchSince = batching ? GerritBatch.forProject(project).getVerified(
+                buildData == null ? null : buildData.getLastBuiltRevision()) : null;
+
+        // independent Gerrit changes get a build each
+        final boolean parallel = useGerritParallel();
+        final Set<ObjectId> reservedShas = parallel ? RevisionReservations.forProject(project).getReserved() : null;
+
+		PollResult result = workspace.act(new FileCallable<PollResult>() {
 			private static final long serialVersionUID = 1L;
 
-			public Boolean invoke(File localWorkspace, VirtualChannel channel) throws IOException {
+			public PollResult invoke(File localWorkspace, VirtualChannel channel) throws IOException {
                 EnvVars environment = new EnvVars(System.getenv());
 
                 IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), listener, environment);
 
 
-                IBuildChooser buildChooser = createBuildChooser(git, listener, buildData);
+                IBuildChooser buildChooser = createBuildChooser(git, listener, workspaceData);
 
                 if (git.hasGitRepo()) {
 					// Repo is there - do a fetch
@@ -271,22 +384,217 @@ public class GitSCM extends SCM implements Serializable {
 
 					listener.getLogger().println("Polling for changes in");
 
-					Collection<Revision> candidates = buildChooser.getCandidateRevisions(true, singleBranch);
+					Collection<Revision> candidates;
+					Map<String, ObjectId> heads = null;
+					if (queueing) {
+						// pruned by the fetch, so deleted branches leave the queue
+						List<Branch> branches = git.getRemoteBranches();
+						heads = new HashMap<String, ObjectId>();
+						for (Branch b : branches) {
+							heads.put(b.getName(), b.getSHA1());
+						}
+						candidates = RevisionQueue.findNewRevisions(previousHeads, branches, getBranches(),
+								workspaceData, new GitUtils(listener, git));
+					} else if (batching) {
+						candidates = new GerritBuildChooser(GitSCM.this, git, new GitUtils(listener, git), workspaceData)
+								.getCommitsSince(batchSince, singleBranch);
+					} else if (parallel) {
+						candidates = new GerritBuildChooser(GitSCM.this, git, new GitUtils(listener, git), workspaceData)
+								.getIndependentCandidates(true, singleBranch, reservedShas);
+					} else {
+						candidates = buildChooser.getCandidateRevisions(true, singleBranch);
+					}
+					if (candidates.isEmpty() && !wasQueued)
+						return new PollResult(candidates, null, heads, singleBranch);
 
-					return (candidates.size() > 0);
+					// so that the build can tell whether it needs to fetch again
+					Map<String, Map<String, ObjectId>> references = null;
+					try {
+						references = PollResult.getReferences(git, getRepositories());
+					} catch (GitException e) {
+						listener.getLogger().println("Unable to list the remote references: " + e.getMessage());
+					}
+					return new PollResult(candidates, references, heads, singleBranch);
 				} else {
 					listener.getLogger().println("No Git repository yet, an initial checkout is required");
-					return true;
+					return null;
 				}
 			}
 		});
 
-		return pollChangesResult;
+		if (result == null)
+			return true;
+		Collection<Revision> candidates = result.getCandidates();
+		if (queueing)
+		{
+			queue.update(result.getHeads(), candidates, buildData);
+			listener.getLogger().println("[poll] Revision queue depth: " + queue.getDepth());
+			candidates = queue.getRevisions();
+		}
+		if (PRIORITY.equals(choosingStrategy) && schedulingOptions.getCoalesceSeconds() > 0)
+		{
+			// the branches still being pushed to are left for a later poll
+			List<Revision> settled = BranchHeads.forProject(project).settle(candidates, System.currentTimeMillis(),
+					schedulingOptions.getCoalesceSeconds() * 1000L);
+			for (Revision candidate : candidates)
+			{
+				if (!settled.contains(candidate))
+					listener.getLogger().println("[poll] Waiting for " + candidate + " to settle before building it");
+			}
+			if (settled.isEmpty())
+				return false;
+			candidates = settled;
+		}
+		// a revision being built by a running build is as good as built
+		RevisionReservations reservations = RevisionReservations.forProject(project);
+		List<Revision> unbuilt = new ArrayList<Revision>();
+		for (Revision candidate : candidates)
+		{
+			if (!reservations.isReserved(candidate.getSha1()))
+				unbuilt.add(candidate);
+		}
+		if (unbuilt.isEmpty())
+		{
+			if (!candidates.isEmpty())
+				listener.getLogger().println("[poll] All the new revisions are being built");
+			return false;
+		}
+		if (!schedulingOptions.isBuildEachCandidate() && !parallel)
+		{
+			PollResult.offer(project, result.forCandidates(unbuilt));
+			return true;
+		}
+
+		// the builds are scheduled here, not by the trigger
+		scheduleBuilds(project, result, unbuilt, listener);
+		return false;
 	}
 
+    /**
+     * Schedule a build of each revision that is not already queued. The
+     * queue does not collapse two builds of a revision scheduled by
+     * successive polls, as their actions differ.
+     */
+    private void scheduleBuilds(AbstractProject<?, ?> project, PollResult result, Collection<Revision> revisions, TaskListener listener)
+    {
+        Set<ObjectId> queued = getQueuedRevisions(project);
+        for (Revision revision : revisions)
+        {
+            if (queued.contains(revision.getSha1()))
+            {
+                listener.getLogger().println("[poll] A build of " + revision + " is already queued");
+                continue;
+            }
+            List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+            parameters.add(new StringParameterValue(GIT_REVISION, revision.getSha1String()));
+            if (project.scheduleBuild(project.getQuietPeriod(), new SCMTrigger.SCMTriggerCause(),
+                    new ParametersAction(parameters), new RevisionParameterAction(revision),
+                    result.forCandidates(Collections.singletonList(revision))))
+                listener.getLogger().println("[poll] Scheduled a build of " + revision);
+        }
+    }
+
+    /**
+     * The revisions that the queued builds of a job were scheduled to build.
+     */
+    private static Set<ObjectId> getQueuedRevisions(AbstractProject<?, ?> project)
+    {
+        Set<ObjectId> queued = new HashSet<ObjectId>();
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems())
+        {
+            if (item.task != project)
+                continue;
+            RevisionParameterAction action = item.getAction(RevisionParameterAction.class);
+            if (action != null && action.getRevision() != null)
+                queued.add(action.getRevision().getSha1());
+        }
+        return queued;
+    }
+
+    /**
+     * A copy of the data of the previous build, with the branches recorded
+     * by builds that finished after it, which ran concurrently with it.
+     */
+    private BuildData getStartingBuildData(AbstractBuild<?, ?> build)
+    {
+        BuildData buildData = getBuildData(build.getPreviousBuild(), true);
+        PollState state = PollState.get(build.getProject());
+        if (state == null || state.getBuildData() == null)
+            return buildData;
+        if (buildData == null)
+            return state.getBuildData().clone();
+        buildData.merge(state.getBuildData());
+        return buildData;
+    }
+
+    /**
+     * Whether the revisions found by polling go through the job's revision
+     * queue. The Gerrit strategy picks commits rather than branch heads.
+     */
+    public boolean useRevisionQueue()
+    {
+        return schedulingOptions.isQueueRevisions() && !GERRIT.equals(choosingStrategy);
+    }
+
+    /**
+     * Whether the Gerrit strategy verifies the commits in batches.
+     */
+    private boolean useGerritBatches()
+    {
+        return GERRIT.equals(choosingStrategy) && schedulingOptions.getGerritBatchSize() > 0;
+    }
+
+    /**
+     * Whether the Gerrit strategy hands independent commits out to parallel
+     * builds. Batches are verified one build after the other.
+     */
+    private boolean useGerritParallel()
+    {
+        return GERRIT.equals(choosingStrategy) && schedulingOptions.isGerritParallel() && !useGerritBatches();
+    }
+
+    /**
+     * Pick the first candidate revision not being built by another running
+     * build of the job, and reserve it for this one.
+     *
+     * @return the revision, or null if there is none
+     */
+    private Revision reserveRevision(AbstractBuild<?, ?> build, Collection<Revision> candidates, TaskListener listener)
+    {
+        RevisionReservations reservations = RevisionReservations.forProject(build.getProject());
+        for (Revision candidate : candidates)
+        {
+            if (reservations.reserve(candidate.getSha1(), build.getNumber()))
+                return candidate;
+            listener.getLogger().println("Skipping " + candidate + ", being built by #" + reservations.getHolder(candidate.getSha1()));
+        }
+        return null;
+    }
+
+    /**
+     * Move the data a build starts from into the job's history store, or
+     * back out of it, as configured.
+     */
+    private BuildData useHistoryStore(AbstractProject<?, ?> project, BuildData buildData)
+    {
+        if (buildDataOptions.isUseHistoryStore())
+        {
+            if (buildData == null)
+                buildData = new BuildData();
+            buildData.useStore(project);
+        }
+        else if (buildData != null)
+        {
+            buildData.leaveStore();
+        }
+        return buildData;
+    }
+
     private IBuildChooser createBuildChooser(IGitAPI git, TaskListener listener, BuildData buildData) {
         if(this.choosingStrategy != null && GERRIT.equals(this.choosingStrategy)) {
             return new GerritBuildChooser(this,git,new GitUtils(listener,git), buildData );
+        } else if (PRIORITY.equals(this.choosingStrategy)) {
+            return new PriorityBuildChooser(this, git, new GitUtils(listener, git), buildData);
         } else
         {
             return new BuildChooser(this, git, new GitUtils(listener, git), buildData);
@@ -307,6 +615,17 @@ public class GitSCM extends SCM implements Serializable {
 		try {
 			git.fetch(remoteRepository);
 
+			// so branches deleted upstream are no longer seen, when the
+			// job prunes them from its build data or queues revisions
+			if (buildDataOptions.isPruneDeletedBranches() || useRevisionQueue()) {
+				try {
+					git.prune(remoteRepository);
+				} catch (GitException ex) {
+					listener.error("Problem pruning the branches of " + remoteRepository.getName()
+							+ " - could be unavailable. Continuing anyway");
+				}
+			}
+
 			List<IndexEntry> submodules = new GitUtils(listener, git)
 					.getSubmodules("HEAD");
 
@@ -337,6 +656,92 @@ public class GitSCM extends SCM implements Serializable {
 
 	}
 
+	/**
+	 * Record the commits the previous build of the Gerrit batch verified,
+	 * by commit, in the commit index of the job.
+	 */
+	private void recordBatchBuilds(AbstractProject<?, ?> project, List<Build> batchBuilds) {
+		for (Build b : batchBuilds) {
+			try {
+				CommitIndex.forProject(project).addBuilt(b.getSHA1(), b.getBuildNumber());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to index the commits verified by build #" + b.getBuildNumber(), e);
+			}
+		}
+	}
+
+	/**
+	 * Record the revision a build built. A build of a Gerrit batch only
+	 * tests its commit, which the commit index records: the last build stays
+	 * the newest commit known to pass, if any.
+	 *
+	 * @return the build recorded, or null if none was
+	 */
+	private Build recordBuilt(IBuildChooser buildChooser, boolean batching, Build batchPassed, Revision revToBuild, int buildNumber) {
+		if (!batching)
+			return buildChooser.revisionBuilt(revToBuild, buildNumber, null);
+		if (batchPassed == null)
+			return null;
+		return buildChooser.revisionBuilt(batchPassed.revision, batchPassed.hudsonBuildNumber, batchPassed.hudsonBuildResult);
+	}
+
+	/**
+	 * Record how far the Gerrit changes built in parallel have all been
+	 * built, counting the one this build is about to record.
+	 */
+	private void advanceWatermark(IBuildChooser buildChooser, String singleBranch, Revision revToBuild, int buildNumber)
+			throws IOException {
+		if (useGerritParallel() && buildChooser instanceof GerritBuildChooser) {
+			((GerritBuildChooser) buildChooser).advanceWatermark(singleBranch, revToBuild.getSha1(), buildNumber);
+		}
+	}
+
+	/**
+	 * Whether a commit, and the commits of the submodules in its tree, are
+	 * all in the workspace, so that building it needs no fetch.
+	 */
+	private boolean isCommitComplete(IGitAPI git, File workspace, TaskListener listener, String commit) {
+		try {
+			ObjectId sha1 = git.revParse(commit + "^{commit}");
+
+			for (IndexEntry submodule : new GitUtils(listener, git).getSubmodules(sha1.name(), true)) {
+				IGitAPI subGit = new GitAPI(git.getGitExe(), new FilePath(new File(workspace, submodule.getFile())),
+						listener, git.getEnvironment());
+				if (!subGit.hasGitRepo() || !subGit.isCommitInRepo(ObjectId.fromString(submodule.getObject())))
+					return false;
+			}
+			return true;
+		} catch (GitException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Whether the workspace is at a revision, with no tracked file changed.
+	 */
+	private boolean isCheckedOut(IGitAPI git, Revision revision) {
+		try {
+			return revision.getSha1().equals(git.revParse("HEAD")) && git.getModifiedFiles().isEmpty();
+		} catch (GitException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * The blob of the <tt>.gitmodules</tt> of a commit, or null if it has none.
+	 */
+	private static ObjectId gitModulesOf(IGitAPI git, String commit) {
+		try {
+			return git.revParse(commit + ":.gitmodules");
+		} catch (GitException ex) {
+			return null;
+		}
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
 	public RemoteConfig getSubmoduleRepository(RemoteConfig orig, String name)
     {
 	    // Attempt to guess the submodule URL??
@@ -388,22 +793,6 @@ public class GitSCM extends SCM implements Serializable {
 
 	}
 
-	private boolean changeLogResult(String changeLog, File changelogFile) throws IOException
-	{
-		if (changeLog == null)
-			return false;
-		else {
-			changelogFile.delete();
-
-			FileOutputStream fos = new FileOutputStream(changelogFile);
-			fos.write(changeLog.getBytes());
-			fos.close();
-			// Write to file
-			return true;
-		}
-	}
-
-
 	@Override
 	public boolean checkout(final AbstractBuild build, Launcher launcher,
 			final FilePath workspace, final BuildListener listener, File changelogFile)
@@ -418,7 +807,8 @@ public class GitSCM extends SCM implements Serializable {
 
 		final String buildnumber = "hudson-" + projectName + "-" + buildNumber;
 
-		final BuildData buildData = getBuildData(build.getPreviousBuild(), true);
+		final BuildData buildData = useHistoryStore(build.getProject(), getStartingBuildData(build));
+		final BuildData workspaceData = buildData == null ? null : buildData.forChannel(workspace.getChannel());
 
 		if( buildData != null && buildData.lastBuild != null)
 		{
@@ -434,7 +824,7 @@ public class GitSCM extends SCM implements Serializable {
         if (build instanceof MatrixRun) {
             MatrixBuild parentBuild = ((MatrixRun)build).getParentBuild();
             if (parentBuild != null) {
-                BuildData parentBuildData = parentBuild.getAction(BuildData.class);
+                BuildData parentBuildData = BuildData.of(parentBuild);
                 if (parentBuildData != null) {
                     tempParentLastBuiltRev = parentBuildData.getLastBuiltRevision();
                 }
@@ -443,23 +833,83 @@ public class GitSCM extends SCM implements Serializable {
 
         final Revision parentLastBuiltRev = tempParentLastBuiltRev;
 
-		final Revision revToBuild = workspace.act(new FileCallable<Revision>() {
+        // a build scheduled for a revision skips picking one
+        RevisionParameterAction requested = (RevisionParameterAction) build.getAction(RevisionParameterAction.class);
+        final Revision requestedRev = requested == null ? null : requested.getRevision();
+        if (requestedRev != null)
+            listener.getLogger().println("Scheduled to build " + requestedRev);
+
+        // the candidates found by the poll that triggered this build; the
+        // configurations of a matrix build use their parent's revision
+        PollResult pollResult = (PollResult) build.getAction(PollResult.class);
+        if (pollResult != null)
+            build.getActions().remove(pollResult);
+        else if (parentLastBuiltRev == null)
+            pollResult = PollResult.take(build.getProject());
+        final PollResult polled = pollResult;
+
+        // the revisions queued by polling, oldest first, but those being built
+        List<Revision> queuedRevisions = null;
+        if (useRevisionQueue() && parentLastBuiltRev == null && requestedRev == null)
+        {
+            RevisionQueue queue = RevisionQueue.forProject(build.getProject());
+            RevisionReservations reservations = RevisionReservations.forProject(build.getProject());
+            queuedRevisions = new ArrayList<Revision>();
+            for (Revision r : queue.getRevisions())
+            {
+                if (!reservations.isReserved(r.getSha1()))
+                    queuedRevisions.add(r);
+            }
+            listener.getLogger().println("Revision queue depth: " + queue.getDepth());
+        }
+        final List<Revision> queued = queuedRevisions;
+
+        // the Gerrit batch picks the commit to build on the master, where the
+        // result of the previous build is known
+        final boolean batching = useGerritBatches() && parentLastBuiltRev == null && requestedRev == null;
+        final GerritBatch batch = batching ? GerritBatch.forProject(build.getProject()) : null;
+        if (batching)
+            recordBatchBuilds(build.getProject(), batch.update(build.getProject(), listener));
+        final Build batchPassed = batching ? batch.getPassed() : null;
+        final Revision lastBuiltRev = buildData == null ? null : buildData.getLastBuiltRevision();
+        final ObjectId batchSince = batching ? batch.getVerified(lastBuiltRev) : null;
+
+        // a build not scheduled for a change takes one independent of those being built
+        final boolean parallel = useGerritParallel() && parentLastBuiltRev == null && requestedRev == null;
+        final Set<ObjectId> reservedShas = parallel ? RevisionReservations.forProject(build.getProject()).getReserved() : null;
+
+		final Collection<Revision> candidates = workspace.act(new FileCallable<Collection<Revision>>() {
 			private static final long serialVersionUID = 1L;
-			public Revision invoke(File localWorkspace, VirtualChannel channel)
+			public Collection<Revision> invoke(File localWorkspace, VirtualChannel channel)
 					throws IOException {
 			    FilePath ws = new FilePath(localWorkspace);
 			    listener.getLogger().println("Checkout:" + ws.getName() + " / " + ws.getRemote() + " - " + ws.getChannel());
 
                 IGitAPI git = new GitAPI(gitExe, ws, listener, environment);
+                List<Revision> reused = null;
 
 				if (git.hasGitRepo()) {
 					// It's an update
 
-					listener.getLogger().println("Fetching changes from the remote Git repository");
+					// submodules are fetched along, so always fetch with them
+					if (polled != null && !git.hasGitModules())
+						reused = polled.reuse(git, getRepositories(), workspaceData, singleBranch, listener);
 
-					for (RemoteConfig remoteRepository : getRepositories())
-					{
-					   fetchFrom(git,localWorkspace,listener,remoteRepository);
+					// a commit asked for by its SHA1 needs no fetch once it is here
+					String commit = requestedRev != null ? requestedRev.getSha1String()
+							: singleBranch != null && singleBranch.matches("[0-9a-f]{6,40}") ? singleBranch : null;
+
+					if (reused != null) {
+						listener.getLogger().println("The remote Git repositories are unchanged since polling, not fetching");
+					} else if (commit != null && isCommitComplete(git, localWorkspace, listener, commit)) {
+						listener.getLogger().println("Commit " + commit + " and its submodules are already in the workspace, not fetching");
+					} else {
+						listener.getLogger().println("Fetching changes from the remote Git repository");
+
+						for (RemoteConfig remoteRepository : getRepositories())
+						{
+						   fetchFrom(git,localWorkspace,listener,remoteRepository);
+						}
 					}
 
 				} else {
@@ -506,17 +956,53 @@ public class GitSCM extends SCM implements Serializable {
 				}
 
                 if (parentLastBuiltRev != null)
-                    return parentLastBuiltRev;
+                    return Collections.singletonList(parentLastBuiltRev);
+                if (requestedRev != null)
+                    return Collections.singletonList(requestedRev);
+                if (batching)
+                    return new GerritBuildChooser(GitSCM.this, git, new GitUtils(listener, git), workspaceData)
+                            .getCommitsSince(batchSince, singleBranch);
+                if (parallel)
+                    return new GerritBuildChooser(GitSCM.this, git, new GitUtils(listener, git), workspaceData)
+                            .getIndependentCandidates(false, singleBranch, reservedShas);
+                // from the oldest queued revision in the workspace
+                if (queued != null) {
+                    for (int i = 0; i < queued.size(); i++) {
+                        if (git.isCommitInRepo(queued.get(i).getSha1()))
+                            return new ArrayList<Revision>(queued.subList(i, queued.size()));
+                    }
+                }
+                if (reused != null)
+                    return reused;
 
-                IBuildChooser buildChooser = createBuildChooser(git, listener, buildData);
+                IBuildChooser buildChooser = createBuildChooser(git, listener, workspaceData);
 
-                Collection<Revision> candidates = buildChooser.getCandidateRevisions(false, singleBranch);
-				if( candidates.size() == 0 )
-					return null;
-				return candidates.iterator().next();
+                return new ArrayList<Revision>(buildChooser.getCandidateRevisions(false, singleBranch));
 			}
 		});
 
+		// The configurations of a matrix build all build the revision of
+		// their parent; other builds must not pick a revision that another
+		// running build of the job has picked.
+		Collection<Revision> chosen = candidates;
+		if (batching)
+		{
+			Revision next = batch.choose(new ArrayList<Revision>(candidates), schedulingOptions.getGerritBatchSize(), build.getNumber(), listener);
+			if (next != null)
+				chosen = Collections.singletonList(next);
+			else
+				chosen = lastBuiltRev == null ? Collections.<Revision>emptyList() : Collections.singletonList(lastBuiltRev);
+		}
+
+		final Revision revToBuild = parentLastBuiltRev != null ? parentLastBuiltRev : reserveRevision(build, chosen, listener);
+
+		if (revToBuild == null && batching)
+		{
+			// nothing built yet, and the first batch is being verified
+			listener.getLogger().println("Nothing to verify until the build of the batch completes");
+			createEmptyChangeLog(changelogFile, listener, "changelog");
+			return true;
+		}
 		if( revToBuild == null )
 		{
 			// getBuildCandidates should make the last item the last build, so a re-build
@@ -524,204 +1010,442 @@ public class GitSCM extends SCM implements Serializable {
 			listener.error("Nothing to do");
 			return false;
 		}
+		if (useRevisionQueue())
+			RevisionQueue.forProject(build.getProject()).remove(revToBuild.getSha1());
 		listener.getLogger().println("Commencing build of " + revToBuild);
 		environment.put(GIT_COMMIT, revToBuild.getSha1String());
-		Object[] returnData; // Changelog, BuildData
-
-
-		if (mergeOptions.doMerge()) {
-			if (!revToBuild.containsBranchName(mergeOptions.getRemoteBranchName())) {
-				returnData = workspace.act(new FileCallable<Object[]>() {
-					private static final long serialVersionUID = 1L;
-					public Object[] invoke(File localWorkspace, VirtualChannel channel)
-							throws IOException {
-                        IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), listener, environment);
-
-                        IBuildChooser buildChooser = createBuildChooser(git, listener, buildData);
-
-                        // Do we need to merge this revision onto MergeTarget
-
-						// Only merge if there's a branch to merge that isn't
-						// us..
-						listener.getLogger().println(
-								"Merging " + revToBuild + " onto "
-										+ mergeOptions.getMergeTarget());
-
-						// checkout origin/blah
-						ObjectId target = git.revParse(mergeOptions.getRemoteBranchName());
-						git.checkout(target.name());
-
-						try {
-							git.merge(revToBuild.getSha1().name());
-						} catch (Exception ex) {
-							listener
-									.getLogger()
-									.println(
-											"Branch not suitable for integration as it does not merge cleanly");
-
-							// We still need to tag something to prevent
-							// repetitive builds from happening - tag the
-							// candidate
-							// branch.
-							git.checkout(revToBuild.getSha1().name());
+		Object[] returnData; // Changelog recorded, BuildData
+
+		// Work out the ranges up front, as recording the build below
+		// updates the build data they are taken from.
+		final Map<String, String> changelogRanges = getChangelogRanges(listener, revToBuild, buildData);
+		final boolean changelogInBackground = changelogOptions.isRecordInBackground();
+		final String commitCacheDir = getCommitCacheDir(build);
+
+		// The changelog is streamed from the workspace straight into the
+		// changelog file, rather than being collected into a String and
+		// shipped back as the result of the FileCallable. The indexes of the
+		// job are fed from it on the way.
+		final FileOutputStream changelogFileStream = new FileOutputStream(changelogFile);
+		final ChangelogSummary changelogSummary = new ChangelogSummary(changelogFileStream);
+		final OutputStream changelog = new RemoteOutputStream(changelogSummary);
 
-							git
-									.tag(buildnumber, "Hudson Build #"
-											+ buildNumber);
+		try {
+			if (mergeOptions.doMerge()) {
+				if (!revToBuild.containsBranchName(mergeOptions.getRemoteBranchName())) {
+					returnData = workspace.act(new FileCallable<Object[]>() {
+						private static final long serialVersionUID = 1L;
+						public Object[] invoke(File localWorkspace, VirtualChannel channel)
+								throws IOException {
+							OutputStream out = new BufferedOutputStream(changelog, CHANGELOG_BUFFER_SIZE);
+							try {
+								IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), listener, environment);
+
+								IBuildChooser buildChooser = createBuildChooser(git, listener, workspaceData);
+
+								// Do we need to merge this revision onto MergeTarget
+
+								// Only merge if there's a branch to merge that isn't
+								// us..
+								listener.getLogger().println(
+										"Merging " + revToBuild + " onto "
+												+ mergeOptions.getMergeTarget());
+
+								// checkout origin/blah
+								ObjectId target = git.revParse(mergeOptions.getRemoteBranchName());
+								git.checkout(target.name());
+
+								try {
+									git.merge(revToBuild.getSha1().name());
+								} catch (Exception ex) {
+									listener
+											.getLogger()
+											.println(
+													"Branch not suitable for integration as it does not merge cleanly");
+
+									// We still need to tag something to prevent
+									// repetitive builds from happening - tag the
+									// candidate
+									// branch.
+									git.checkout(revToBuild.getSha1().name());
+
+									git
+											.tag(buildnumber, "Hudson Build #"
+													+ buildNumber);
+
+
+
+									if (batching)
+										recordBuilt(buildChooser, batching, batchPassed, revToBuild, buildNumber);
+									else
+										buildChooser.revisionBuilt(revToBuild, buildNumber, Result.FAILURE);
+
+									return new Object[]{Boolean.FALSE, buildChooser.getData()};
+								}
+
+								if (git.hasGitModules()) {
+									git.submoduleUpdate();
+								}
+
+								// Tag the successful merge
+								git.tag(buildnumber, "Hudson Build #" + buildNumber);
+
+								writeChangelog(git, listener, changelogRanges, revToBuild, changelogInBackground, commitCacheDir, out);
+
+								advanceWatermark(buildChooser, singleBranch, revToBuild, buildNumber);
+								Build buildData = recordBuilt(buildChooser, batching, batchPassed, revToBuild, buildNumber);
+								if (!batching) {
+									GitUtils gu = new GitUtils(listener,git);
+									buildData.mergeRevision = gu.getRevisionForSHA1(target);
+								}
+
+								return new Object[]{Boolean.TRUE, buildChooser.getData()};
+							} finally {
+								out.close();
+							}
+						}
+					});
+					BuildData returningBuildData = (BuildData)returnData[1];
+					build.addAction(returningBuildData);
+					recordBuildData(build, returningBuildData, buildData, revToBuild);
+					changelogFileStream.close();
+					if ((Boolean) returnData[0] && changelogInBackground)
+						recordChangelogInBackground(build, workspace, listener, environment, changelogRanges, revToBuild, commitCacheDir, changelogFile);
+					else if ((Boolean) returnData[0])
+						indexChangelog(build, changelogSummary);
+					return (Boolean) returnData[0];
+				}
+			}
 
+			// No merge
 
+			returnData = workspace.act(new FileCallable<Object[]>() {
+				private static final long serialVersionUID = 1L;
+				public Object[] invoke(File localWorkspace, VirtualChannel channel)
+						throws IOException {
+					IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), listener, environment);
+					IBuildChooser buildChooser = createBuildChooser(git, listener, workspaceData);
+					OutputStream out = new BufferedOutputStream(changelog, CHANGELOG_BUFFER_SIZE);
+					try {
 
-							buildChooser.revisionBuilt(revToBuild, buildNumber, Result.FAILURE);
+						// Straight compile-the-branch. The submodule combinations
+						// change the workspace, so they always start from a checkout.
+						ObjectId previousModules = gitModulesOf(git, "HEAD");
+						boolean checkedOut = doGenerateSubmoduleConfigurations || !isCheckedOut(git, revToBuild);
+						if (checkedOut) {
+							listener.getLogger().println("Checking out " + revToBuild);
+							git.checkout(revToBuild.getSha1().name());
+						} else {
+							listener.getLogger().println("The workspace is already at " + revToBuild + ", skipping checkout");
+						}
 
-							return new Object[]{null, buildChooser.getData()};
+						// if( compileSubmoduleCompares )
+						if (doGenerateSubmoduleConfigurations) {
+							SubmoduleCombinator combinator = new SubmoduleCombinator(
+									git, listener, localWorkspace, submoduleCfg);
+							combinator.createSubmoduleCombinations();
 						}
 
-						if (git.hasGitModules()) {
+						if (git.hasGitModules() && !doGenerateSubmoduleConfigurations) {
+							// Only run the steps whose inputs changed: new submodules
+							// need init, changed URLs need sync, and submodules not at
+							// the commits recorded need fetch and update.
+							Map<String, Character> states = git.getSubmoduleStates();
+							boolean uninitialized = states.containsValue('-');
+							boolean outOfDate = uninitialized || states.containsValue('+') || states.containsValue('U');
+							boolean modulesChanged = checkedOut && !equal(previousModules, gitModulesOf(git, "HEAD"));
+							List<String> skipped = new ArrayList<String>();
+
+							if (uninitialized)
+								git.submoduleInit();
+							else
+								skipped.add("init");
+							if (uninitialized || modulesChanged)
+								git.submoduleSync();
+							else
+								skipped.add("sync");
+							if (outOfDate) {
+								for (RemoteConfig remoteRepository : getRepositories()) {
+									fetchFrom(git, localWorkspace, listener, remoteRepository);
+								}
+								git.submoduleUpdate();
+							} else {
+								skipped.add("fetch and update");
+							}
+
+							if (!skipped.isEmpty())
+								listener.getLogger().println("Submodules are up to date, skipping submodule " + StringUtils.join(skipped, ", "));
+						} else if (git.hasGitModules()) {
+							git.submoduleInit();
+							git.submoduleSync();
+
+							// Git submodule update will only 'fetch' from where it
+							// regards as 'origin'. However,
+							// it is possible that we are building from a
+							// RemoteRepository with changes
+							// that are not in 'origin' AND it may be a new module that
+							// we've only just discovered.
+							// So - try updating from all RRs, then use the submodule
+							// Update to do the checkout
+
+							for (RemoteConfig remoteRepository : getRepositories()) {
+								fetchFrom(git, localWorkspace, listener, remoteRepository);
+							}
+
+							// Update to the correct checkout
 							git.submoduleUpdate();
+
 						}
 
 						// Tag the successful merge
 						git.tag(buildnumber, "Hudson Build #" + buildNumber);
 
-						StringBuilder changeLog = new StringBuilder();
+						writeChangelog(git, listener, changelogRanges, revToBuild, changelogInBackground, commitCacheDir, out);
 
-						if( revToBuild.getBranches().size() > 0 )
-								listener.getLogger().println("Warning : There are multiple branch changesets here");
 
-						try {
-							for( Branch b : revToBuild.getBranches() )
-							{
-							    Build lastRevWas = buildData==null?null:buildData.getLastBuildOfBranch(b.getName());
-							    if( lastRevWas != null ) {
-							        changeLog.append(putChangelogDiffsIntoFile(git,  b.name, lastRevWas.getSHA1().name(), revToBuild.getSha1().name()));
-							    }
-							}
-						} catch (GitException ge) {
-							changeLog.append("Unable to retrieve changeset");
-						}
+						advanceWatermark(buildChooser, singleBranch, revToBuild, buildNumber);
+						recordBuilt(buildChooser, batching, batchPassed, revToBuild, buildNumber);
 
-						Build buildData = buildChooser.revisionBuilt(revToBuild, buildNumber, null);
-						GitUtils gu = new GitUtils(listener,git);
-						buildData.mergeRevision = gu.getRevisionForSHA1(target);
+						if (getClean()) {
+							listener.getLogger().println("Cleaning workspace");
+							git.clean();
+						}
 
-						// Fetch the diffs into the changelog file
-						return new Object[]{changeLog.toString(), buildChooser.getData()};
+						return new Object[]{Boolean.TRUE, buildChooser.getData()};
+					} finally {
+						out.close();
 					}
-				});
-				BuildData returningBuildData = (BuildData)returnData[1];
-				build.addAction(returningBuildData);
-				return changeLogResult((String) returnData[0], changelogFile);
-			}
+				}
+			});
+			build.addAction((Action) returnData[1]);
+			recordBuildData(build, (BuildData) returnData[1], buildData, revToBuild);
+			changelogFileStream.close();
+			if (changelogInBackground)
+				recordChangelogInBackground(build, workspace, listener, environment, changelogRanges, revToBuild, commitCacheDir, changelogFile);
+			else
+				indexChangelog(build, changelogSummary);
+
+			return (Boolean) returnData[0];
+		} finally {
+			// Normally already closed through the remote stream, but make
+			// sure the file is released if the workspace call failed.
+			changelogFileStream.close();
 		}
+	}
 
-		// No merge
+    /**
+     * Record the build data a build brought back from the workspace in the
+     * poll state of the job, keep it in the job directory if it is a
+     * snapshot, and feed the revision it built to the commit index of the
+     * job. Both live on the master.
+     *
+     * @param sent the build data the build started from
+     * @param built the revision the build built
+     */
+    private void recordBuildData(AbstractBuild<?, ?> build, BuildData buildData, BuildData sent, Revision built)
+    {
+        if (buildData == null)
+            return;
+        buildData.recordedBy(build, sent);
+        try
+        {
+            // builds of the job may have finished while this one ran
+            PollState.merge(build.getProject(), build.getNumber(), buildData, getSingleBranch(build));
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to record the poll state of " + build, e);
+        }
+        try
+        {
+            buildData.keepSnapshot(build.getProject());
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to keep the build data snapshot of " + build, e);
+        }
 
-		returnData = workspace.act(new FileCallable<Object[]>() {
-			private static final long serialVersionUID = 1L;
-			public Object[] invoke(File localWorkspace, VirtualChannel channel)
-					throws IOException {
-                IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), listener, environment);
-                IBuildChooser buildChooser = createBuildChooser(git, listener, buildData);
+        try
+        {
+            CommitIndex.forProject(build.getProject()).addBuilt(built.getSha1(), build.getNumber());
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to index the revision of " + build, e);
+        }
+    }
 
-                // Straight compile-the-branch
-				listener.getLogger().println("Checking out " + revToBuild);
-				git.checkout(revToBuild.getSha1().name());
+    /**
+     * Feed the paths and commits of the changelog a build recorded to the
+     * indexes of the job. This is done once, when the changelog is complete,
+     * from what was picked up while it was written, rather than whenever the
+     * changelog is parsed.
+     */
+    static void indexChangelog(AbstractBuild<?, ?> build, ChangelogSummary summary)
+    {
+        try
+        {
+            if (summary.isPending())
+                return;
+            PathIndex.forProject(build.getProject()).addPaths(build.getNumber(), summary.getPaths());
+            CommitIndex.forProject(build.getProject()).addContained(summary.getCommits(), build.getNumber());
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to index the changelog of " + build, e);
+        }
+    }
 
-				// if( compileSubmoduleCompares )
-				if (doGenerateSubmoduleConfigurations) {
-					SubmoduleCombinator combinator = new SubmoduleCombinator(
-							git, listener, localWorkspace, submoduleCfg);
-					combinator.createSubmoduleCombinations();
-				}
+    public void buildEnvVars(AbstractBuild build, java.util.Map<String, String> env) {
+        super.buildEnvVars(build, env);
+        String branch = getSingleBranch(build);
+        if(branch != null){
+            env.put(GIT_BRANCH, branch);
+        }
+    }
 
-				if (git.hasGitModules()) {
-					git.submoduleInit();
-					git.submoduleSync();
+	/**
+	 * Find, for every branch of the revision, the last built revision that
+	 * its changelog starts from.
+	 *
+	 * @return the start of the range by branch name, in branch order
+	 */
+	private Map<String, String> getChangelogRanges(TaskListener listener, Revision revToBuild, BuildData buildData)
+	{
+		Map<String, String> revFromByBranch = new LinkedHashMap<String, String>();
+		for( Branch b : revToBuild.getBranches() )
+		{
+			Build lastRevWas = buildData==null?null:buildData.getLastBuildOfBranch(b.getName());
+			if( lastRevWas == null )
+			{
+				listener.getLogger().println("No change to record in branch " + b.getName());
+				continue;
+			}
 
-					// Git submodule update will only 'fetch' from where it
-					// regards as 'origin'. However,
-					// it is possible that we are building from a
-					// RemoteRepository with changes
-					// that are not in 'origin' AND it may be a new module that
-					// we've only just discovered.
-					// So - try updating from all RRs, then use the submodule
-					// Update to do the checkout
+			listener.getLogger().println("Recording changes in branch " + b.getName());
+			revFromByBranch.put(b.getName(), lastRevWas.getSHA1().name());
+		}
+		return revFromByBranch;
+	}
 
-					for (RemoteConfig remoteRepository : getRepositories()) {
-						fetchFrom(git, localWorkspace, listener, remoteRepository);
-					}
+	/**
+	 * Write the changelog during checkout: either the full changelog, or when
+	 * it is recorded in the background only a placeholder with the ranges.
+	 */
+	private void writeChangelog(IGitAPI git, TaskListener listener, Map<String, String> revFromByBranch,
+			Revision revToBuild, boolean inBackground, String commitCacheDir, OutputStream fos) throws IOException
+	{
+		String revTo = revToBuild.getSha1().name();
+		if( revFromByBranch.size() > 1 )
+			listener.getLogger().println("Warning : There are multiple branch changesets here");
 
-					// Update to the correct checkout
-					git.submoduleUpdate();
+		if (inBackground)
+		{
+			fos.write((GitChangeLogParser.PENDING + "\n").getBytes());
+			for (Map.Entry<String, String> range : revFromByBranch.entrySet())
+			{
+				fos.write((GitChangeLogParser.BRANCH_HEADER + range.getKey() + ", between "
+						+ range.getValue() + " and " + revTo + "\n").getBytes());
+			}
+			return;
+		}
 
-				}
+		try {
+			putChangelogDiffsIntoFile(git, revFromByBranch, revTo, commitCacheDir, fos);
+		} catch (GitException ge) {
+			fos.write("Unable to retrieve changeset".getBytes());
+		}
+	}
 
-				// Tag the successful merge
-                git.tag(buildnumber, "Hudson Build #" + buildNumber);
-
-                StringBuilder changeLog = new StringBuilder();
-
-                int histories = 0;
-
-                try {
-	                for( Branch b : revToBuild.getBranches() )
-	                {
-	                    Build lastRevWas = buildData==null?null:buildData.getLastBuildOfBranch(b.getName());
-
-	                    if( lastRevWas != null )
-	                    {
-	                        listener.getLogger().println("Recording changes in branch " + b.getName());
-	                        changeLog.append(putChangelogDiffsIntoFile(git, b.name, lastRevWas.getSHA1().name(), revToBuild.getSha1().name()));
-	                        histories++;
-	                    } else {
-	                        listener.getLogger().println("No change to record in branch " + b.getName());
-	                    }
-	                }
-                } catch (GitException ge) {
-					changeLog.append("Unable to retrieve changeset");
-                }
+	/**
+	 * Record the changelog with a background task in the workspace, while the
+	 * build runs. {@link BackgroundChangelog} moves it into place once the
+	 * changes of the build are read, or the build completes.
+	 */
+	private void recordChangelogInBackground(AbstractBuild<?, ?> build, FilePath workspace, TaskListener listener,
+			final EnvVars environment, final Map<String, String> revFromByBranch, Revision revToBuild,
+			final String commitCacheDir, File changelogFile) throws IOException, InterruptedException
+	{
+		final String gitExe = getDescriptor().getGitExe();
+		final String revTo = revToBuild.getSha1().name();
+		File output = new File(changelogFile.getPath() + ".tmp");
+		ChangelogSummary summary = new ChangelogSummary(new FileOutputStream(output));
+		final OutputStream changelog = new RemoteOutputStream(summary);
 
-                if( histories > 1 )
-                    listener.getLogger().println("Warning : There are multiple branch changesets here");
+		Future<Void> task = workspace.actAsync(new FileCallable<Void>() {
+			private static final long serialVersionUID = 1L;
+			public Void invoke(File localWorkspace, VirtualChannel channel)
+					throws IOException {
+				// Keep git invocations out of the log of the running build
+				IGitAPI git = new GitAPI(gitExe, new FilePath(localWorkspace), TaskListener.NULL, environment);
+				OutputStream out = new BufferedOutputStream(changelog, CHANGELOG_BUFFER_SIZE);
+				try {
+					putChangelogDiffsIntoFile(git, revFromByBranch, revTo, commitCacheDir, out);
+				} catch (GitException ge) {
+					out.write("Unable to retrieve changeset".getBytes());
+				} finally {
+					out.close();
+				}
+				return null;
+			}
+		});
 
+		BackgroundChangelog.register(build, task, listener, summary, output, changelogFile);
+	}
 
-                buildChooser.revisionBuilt(revToBuild, buildNumber, null);
+	/**
+	 * Write the changelog of all the branches of a revision. The commit
+	 * ranges of the branches usually overlap, so each branch only records
+	 * references to its commits, and every commit of the union is logged
+	 * and diffed once.
+	 */
+	private void putChangelogDiffsIntoFile(IGitAPI git, Map<String, String> revFromByBranch, String revTo,
+			String commitCacheDir, OutputStream fos) throws IOException {
+		Map<String, List<String>> commitsByBranch = new LinkedHashMap<String, List<String>>();
+		Set<String> commits = new LinkedHashSet<String>();
 
-                if (getClean()) {
-    				listener.getLogger().println("Cleaning workspace");
-                    git.clean();
-                }
+		for (Map.Entry<String, String> range : revFromByBranch.entrySet())
+		{
+			List<String> branchCommits = git.getChangeLogCommits(range.getValue(), revTo);
+			commitsByBranch.put(range.getKey(), branchCommits);
+			commits.addAll(branchCommits);
+		}
 
-                // Fetch the diffs into the changelog file
-                return new Object[]{changeLog.toString(), buildChooser.getData()};
+		// Only reference the commits that actually make it into the changelog
+		int maxCommits = changelogOptions.getMaxCommits();
+		Set<String> logged = commits;
+		if (maxCommits > 0 && commits.size() > maxCommits)
+		{
+			logged = new HashSet<String>(new ArrayList<String>(commits).subList(0, maxCommits));
+		}
 
+		for (Map.Entry<String, List<String>> branchCommits : commitsByBranch.entrySet())
+		{
+			String branchName = branchCommits.getKey();
+			String changeset = GitChangeLogParser.BRANCH_HEADER + branchName + ", between "
+					+ revFromByBranch.get(branchName) + " and " + revTo + "\n";
+			fos.write(changeset.getBytes());
+			for (String commit : branchCommits.getValue())
+			{
+				if (logged.contains(commit))
+					fos.write((GitChangeLogParser.BRANCH_COMMIT + commit + "\n").getBytes());
 			}
-		});
-		build.addAction((Action) returnData[1]);
-
-        return changeLogResult((String) returnData[0], changelogFile);
+		}
 
+		CommitCache cache = commitCacheDir == null ? null : CommitCache.forDirectory(new File(commitCacheDir));
+		git.changelog(new ArrayList<String>(commits), fos, maxCommits,
+				changelogOptions.getMaxPathsPerCommit(), cache);
 	}
 
-    public void buildEnvVars(AbstractBuild build, java.util.Map<String, String> env) {
-        super.buildEnvVars(build, env);
-        String branch = getSingleBranch(build);
-        if(branch != null){
-            env.put(GIT_BRANCH, branch);
-        }
-    }
-
-	private String putChangelogDiffsIntoFile(IGitAPI git, String branchName, String revFrom,
-			String revTo) throws IOException {
-		ByteArrayOutputStream fos = new ByteArrayOutputStream();
-		// fos.write("<data><![CDATA[".getBytes());
-		String changeset = "Changes in branch " + branchName + ", between " + revFrom + " and " + revTo + "\n";
-		fos.write(changeset.getBytes());
-
-		git.changelog(revFrom, revTo, fos);
-		// fos.write("]]></data>".getBytes());
-		fos.close();
-		return fos.toString();
+	/**
+	 * Directory of the commit cache on the node the build runs on, or null
+	 * if the node has no usable root directory.
+	 */
+	private String getCommitCacheDir(AbstractBuild<?, ?> build)
+	{
+		Node node = build.getBuiltOn();
+		FilePath root = node == null ? null : node.getRootPath();
+		return root == null ? null : root.child("git-commit-cache").getRemote();
 	}
 
 	@Override
@@ -844,6 +1568,24 @@ public class GitSCM extends SCM implements Serializable {
             	mergeOptions.setMergeTarget(req.getParameter("git.mergeTarget"));
             }
 
+			ChangelogOptions changelogOptions = new ChangelogOptions();
+			changelogOptions.setMaxCommits(parseLimit(req, "git.changelog.maxCommits"));
+			changelogOptions.setMaxPathsPerCommit(parseLimit(req, "git.changelog.maxPaths"));
+			changelogOptions.setRecordInBackground(req.getParameter("git.changelog.background") != null);
+
+			BuildDataOptions buildDataOptions = new BuildDataOptions();
+			buildDataOptions.setPruneDeletedBranches(req.getParameter("git.buildData.pruneDeleted") != null);
+			buildDataOptions.setPruneAfterDays(parseLimit(req, "git.buildData.pruneAfterDays"));
+			buildDataOptions.setUseHistoryStore(req.getParameter("git.buildData.store") != null);
+
+			SchedulingOptions schedulingOptions = new SchedulingOptions();
+			schedulingOptions.setBuildEachCandidate(req.getParameter("git.schedule.eachCandidate") != null);
+			schedulingOptions.setQueueRevisions(req.getParameter("git.schedule.queue") != null);
+			schedulingOptions.setGerritBatchSize(parseLimit(req, "git.schedule.gerritBatchSize"));
+			schedulingOptions.setGerritParallel(req.getParameter("git.schedule.gerritParallel") != null);
+			schedulingOptions.setBranchPriorities(req.getParameter("git.schedule.branchPriorities"));
+			schedulingOptions.setCoalesceSeconds(parseLimit(req, "git.schedule.coalesceSeconds"));
+
 			Collection<SubmoduleConfig> submoduleCfg = new ArrayList<SubmoduleConfig>();
 
 			GitWeb gitWeb = null;
@@ -868,7 +1610,24 @@ public class GitSCM extends SCM implements Serializable {
 					submoduleCfg,
 					req.getParameter("git.clean") != null,
                     req.getParameter("git.choosing_strategy"),
-					gitWeb);
+					gitWeb,
+					changelogOptions,
+					buildDataOptions,
+					schedulingOptions);
+		}
+
+		/**
+		 * Parse an optional numeric limit, where blank means unlimited (0).
+		 */
+		private int parseLimit(StaplerRequest req, String name) throws FormException {
+			String value = req.getParameter(name);
+			if (value == null || value.trim().length() == 0)
+				return 0;
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				throw new FormException("Not a number: '" + value + "'", name);
+			}
 		}
 
 
@@ -938,7 +1697,7 @@ public class GitSCM extends SCM implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-
+	private static final Logger LOGGER = Logger.getLogger(GitSCM.class.getName());
 
 	public boolean getDoGenerate() {
 		return this.doGenerateSubmoduleConfigurations;
@@ -954,6 +1713,91 @@ public class GitSCM extends SCM implements Serializable {
         return mergeOptions;
     }
 
+    public ChangelogOptions getChangelogOptions()
+    {
+        return changelogOptions;
+    }
+
+    public BuildDataOptions getBuildDataOptions()
+    {
+        return buildDataOptions;
+    }
+
+    public SchedulingOptions getSchedulingOptions()
+    {
+        return schedulingOptions;
+    }
+
+    /**
+     * The builds of the job that built or contained a commit, from the
+     * commit index of the job, as JSON:
+     * <tt>job/NAME/scm/commitBuilds?sha1=...</tt>. <tt>builtBy</tt> lists the
+     * builds of that exact revision, and <tt>firstBuild</tt> is the first
+     * build that contained the commit, or -1.
+     *
+     * @see CommitIndex
+     */
+    public void doCommitBuilds(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        AbstractProject<?, ?> project = req.findAncestorObject(AbstractProject.class);
+        String sha1 = req.getParameter("sha1");
+        if (project == null || sha1 == null || !ObjectId.isId(sha1))
+        {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        CommitIndex index = CommitIndex.forProject(project);
+        ObjectId id = ObjectId.fromString(sha1);
+        List<Integer> builtBy = index.getBuiltBy(id);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"sha1\":");
+        w.print(JSONUtils.quote(id.name()));
+        w.print(",\"builtBy\":[");
+        for (int i = 0; i < builtBy.size(); i++)
+        {
+            if (i > 0)
+                w.print(',');
+            w.print(builtBy.get(i));
+        }
+        w.print("],\"firstBuild\":");
+        w.print(index.getFirstBuild(id));
+        w.print('}');
+    }
+
+    /**
+     * The builds of the job that affected a path, from the path index of the
+     * job, as JSON: <tt>job/NAME/scm/pathBuilds?path=src/Foo.java</tt>.
+     * A path ending with a slash matches every path below it.
+     *
+     * @see PathIndex
+     */
+    public void doPathBuilds(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        AbstractProject<?, ?> project = req.findAncestorObject(AbstractProject.class);
+        String path = req.getParameter("path");
+        if (project == null || path == null)
+        {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        List<Integer> builds = PathIndex.forProject(project).getBuilds(path);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"path\":");
+        w.print(JSONUtils.quote(path));
+        w.print(",\"builds\":[");
+        for (int i = 0; i < builds.size(); i++)
+        {
+            if (i > 0)
+                w.print(',');
+            w.print(builds.get(i));
+        }
+        w.print("]}");
+    }
+
     /**
      * Look back as far as needed to find a valid BuildData.  BuildData
      * may not be recorded if an exception occurs in the plugin logic.
@@ -966,7 +1810,7 @@ public class GitSCM extends SCM implements Serializable {
 		BuildData buildData = null;
 		while (build != null)
 		{
-			buildData = build.getAction(BuildData.class);
+			buildData = BuildData.of(build);
 			if (buildData != null)
 				break;
 			build = build.getPreviousBuild();
@@ -5,7 +5,9 @@ import hudson.EnvVars;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.spearce.jgit.lib.ObjectId;
@@ -27,6 +29,12 @@ public interface IGitAPI {
     public void fetch(String repository, String refspec) throws GitException;
     void fetch(RemoteConfig remoteRepository);
 
+    /**
+     * Delete the references fetched from a remote repository whose
+     * branches were deleted there, as <tt>git remote prune</tt> would.
+     */
+    void prune(RemoteConfig remoteRepository) throws GitException;
+
     void fetch() throws GitException;
     void push(RemoteConfig repository, String revspec) throws GitException;
     void merge(String revSpec) throws GitException;
@@ -34,15 +42,52 @@ public interface IGitAPI {
     void clean() throws GitException;
 
     ObjectId revParse(String revName) throws GitException;
+
+    /**
+     * The references of a remote repository, by name, as listed by
+     * <tt>git ls-remote</tt>, without fetching anything.
+     */
+    Map<String, ObjectId> getRemoteReferences(String repository) throws GitException;
+
+    /**
+     * True if a commit is in the repository.
+     */
+    boolean isCommitInRepo(ObjectId commit) throws GitException;
+
+    /**
+     * The tracked files, other than submodules, that differ from HEAD in the
+     * index or the working tree.
+     */
+    List<String> getModifiedFiles() throws GitException;
+
+    /**
+     * The committer time of commits, in milliseconds, by commit.
+     */
+    Map<ObjectId, Long> getCommitTimes(Collection<ObjectId> commits) throws GitException;
+
+    /**
+     * The state of each submodule by path, as the prefix <tt>git submodule
+     * status</tt> gives it: ' ' if checked out at the commit recorded in the
+     * index, '-' if not initialized, '+' if at another commit, 'U' if in conflict.
+     */
+    Map<String, Character> getSubmoduleStates() throws GitException;
     List<Branch> getBranches() throws GitException;
     List<Branch> getRemoteBranches() throws GitException, IOException;
     List<Branch> getBranchesContaining(String revspec) throws GitException;
 
     List<IndexEntry> lsTree(String treeIsh) throws GitException;
+    List<IndexEntry> lsTree(String treeIsh, boolean recursive) throws GitException;
 
     List<ObjectId> revListBranch(String branchId) throws GitException;
     List<ObjectId> revListAll() throws GitException;
 
+    /**
+     * The parents of each commit reachable from the given ones, listed by a
+     * single <tt>rev-list --parents</tt>, in an order where a commit always
+     * comes before its parents.
+     */
+    Map<ObjectId, List<ObjectId>> revListParents(Collection<ObjectId> commits) throws GitException;
+
     String describe(String commitIsh) throws GitException;
 
     List<Tag> getTagsOnCommit(String revName) throws GitException, IOException;
@@ -52,6 +97,10 @@ public interface IGitAPI {
     Set<String> getTagNames(String tagPattern) throws GitException;
 
     void changelog(String revFrom, String revTo, OutputStream fos) throws GitException;
+    void changelog(String revFrom, String revTo, OutputStream fos, int maxCommits, int maxPaths) throws GitException;
+    void changelog(List<String> commits, OutputStream fos, int maxCommits, int maxPaths) throws GitException;
+    void changelog(List<String> commits, OutputStream fos, int maxCommits, int maxPaths, CommitCache cache) throws GitException;
+    List<String> getChangeLogCommits(String revFrom, String revTo) throws GitException;
 	void checkout(String revToBuild) throws GitException;
 
 	void add(String filePattern) throws GitException;
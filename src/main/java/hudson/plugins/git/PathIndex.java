@@ -0,0 +1,290 @@
+package hudson.plugins.git;
+
+import hudson.model.AbstractProject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the paths affected by the builds of a job, so that the builds
+ * that touched a path can be found without parsing every changelog.
+ * <p>
+ * The index is fed with the changelog of a build once, when the build has
+ * recorded it, and is stored in the job directory as an append-only file of one record
+ * per build: the build number, the number of paths and the paths.
+ */
+public class PathIndex
+{
+    private static final int VERSION = 1;
+
+    /**
+     * Longest path a record may hold; a longer one means the file is damaged.
+     */
+    private static final int MAX_PATH_LENGTH = 64 * 1024;
+
+    private static final Map<File, PathIndex> INDEXES = new HashMap<File, PathIndex>();
+
+    private final File file;
+
+    /**
+     * Build numbers by path, in increasing order.
+     */
+    private final TreeMap<String, int[]> builds = new TreeMap<String, int[]>();
+
+    private final Set<Integer> indexed = new HashSet<Integer>();
+
+    private boolean loaded;
+
+    PathIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Get the index of a job. There is a single instance per job in a JVM.
+     */
+    public static PathIndex forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (INDEXES)
+        {
+            PathIndex index = INDEXES.get(dir);
+            if (index == null)
+            {
+                index = new PathIndex(new File(dir, "git-paths.index"));
+                INDEXES.put(dir, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Index the paths affected by a build, unless it is already indexed.
+     */
+    public void add(int build, Collection<GitChangeSet> changeSets) throws IOException
+    {
+        Set<String> paths = new TreeSet<String>();
+        for (GitChangeSet changeSet : changeSets)
+        {
+            for (GitChangeSet.Path path : changeSet.getPaths())
+            {
+                // renames are recorded as "from\tto"
+                for (String p : path.getPath().split("\t"))
+                {
+                    paths.add(p);
+                }
+            }
+        }
+        addPaths(build, paths);
+    }
+
+    /**
+     * Index the given paths as affected by a build, unless it is already
+     * indexed.
+     */
+    public synchronized void addPaths(int build, Set<String> paths) throws IOException
+    {
+        load();
+        if (indexed.contains(build))
+            return;
+
+        boolean created = !file.exists();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try
+        {
+            if (created)
+                out.writeInt(VERSION);
+            out.writeInt(build);
+            out.writeInt(paths.size());
+            for (String path : paths)
+            {
+                byte[] buf = path.getBytes("UTF-8");
+                out.writeInt(buf.length);
+                out.write(buf);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        index(build, paths);
+    }
+
+    /**
+     * True if the paths of the build are in the index.
+     */
+    public synchronized boolean contains(int build)
+    {
+        load();
+        return indexed.contains(build);
+    }
+
+    /**
+     * The numbers of the builds that affected a path, in increasing order.
+     * Builds that have since been deleted are included.
+     *
+     * @param path a path in the repository, or a directory ending with a slash
+     *        for all the paths below it
+     */
+    public synchronized List<Integer> getBuilds(String path)
+    {
+        load();
+        Set<Integer> result = new TreeSet<Integer>();
+        Collection<int[]> matches;
+        if (path.endsWith("/"))
+        {
+            SortedMap<String, int[]> below = builds.subMap(path, path + Character.MAX_VALUE);
+            matches = below.values();
+        }
+        else
+        {
+            int[] numbers = builds.get(path);
+            matches = new ArrayList<int[]>();
+            if (numbers != null)
+                matches.add(numbers);
+        }
+        for (int[] numbers : matches)
+        {
+            for (int number : numbers)
+            {
+                result.add(number);
+            }
+        }
+        return new ArrayList<Integer>(result);
+    }
+
+    private void index(int build, Collection<String> paths)
+    {
+        indexed.add(build);
+        for (String path : paths)
+        {
+            int[] numbers = builds.get(path);
+            if (numbers == null)
+            {
+                builds.put(path, new int[] { build });
+            }
+            else
+            {
+                int[] grown = new int[numbers.length + 1];
+                System.arraycopy(numbers, 0, grown, 0, numbers.length);
+                grown[numbers.length] = build;
+                builds.put(path, grown);
+            }
+        }
+    }
+
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        long valid = 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != VERSION)
+                {
+                    // written by another version: start again
+                    in.close();
+                    file.delete();
+                    return;
+                }
+                valid = 4;
+                while (true)
+                {
+                    int build;
+                    try
+                    {
+                        build = in.readInt();
+                    }
+                    catch (EOFException e)
+                    {
+                        break;
+                    }
+                    int count = in.readInt();
+                    if (count < 0)
+                        throw new IOException("Damaged path count " + count);
+                    long length = 8;
+                    List<String> paths = new ArrayList<String>(Math.min(count, 1024));
+                    for (int i = 0; i < count; i++)
+                    {
+                        byte[] path = readBytes(in);
+                        paths.add(new String(path, "UTF-8"));
+                        length += 4 + path.length;
+                    }
+                    valid += length;
+                    index(build, paths);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // a record cut short by a crash; drop it so appends stay readable
+            LOGGER.log(Level.WARNING, "Truncating damaged path index " + file + " to " + valid + " bytes", e);
+            if (valid < 4)
+            {
+                file.delete();
+                return;
+            }
+            try
+            {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try
+                {
+                    raf.setLength(valid);
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+            catch (IOException e2)
+            {
+                LOGGER.log(Level.WARNING, "Unable to truncate " + file, e2);
+                file.delete();
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PATH_LENGTH)
+            throw new IOException("Damaged path length " + length);
+        byte[] buf = new byte[length];
+        in.readFully(buf);
+        return buf;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PathIndex.class.getName());
+}
@@ -1,6 +1,8 @@
 package hudson.plugins.git;
 
 import hudson.Plugin;
+import hudson.model.Run;
+import hudson.plugins.git.util.BuildData;
 
 /**
  * Plugin entry point.
@@ -9,4 +11,17 @@ import hudson.Plugin;
  * @plugin
  */
 public class PluginImpl extends Plugin {
+    @Override
+    public void start() throws Exception {
+        // A BuildData stored as a delta refers to its snapshot by build
+        // number; the snapshot itself is only linked in memory.
+        Run.XSTREAM.omitField(BuildData.class, "base");
+        // Neither is the history store, which is resolved by job name.
+        Run.XSTREAM.omitField(BuildData.class, "store");
+    }
+
+    @Override
+    public void stop() throws Exception {
+        AuthorCache.shutdown();
+    }
 }
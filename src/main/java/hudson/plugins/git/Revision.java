@@ -1,5 +1,7 @@
 package hudson.plugins.git;
 
+import hudson.plugins.git.util.Interner;
+
 import java.util.ArrayList;
 import java.util.Collection;
 
@@ -86,6 +88,17 @@ public class Revision implements java.io.Serializable, Cloneable
     return s;
   }
 
+  /**
+   * Share the SHA1 with the other objects loaded. The branches of a loaded
+   * revision cannot be changed; {@link #clone()} it to get a copy that can.
+   */
+  private Object readResolve()
+  {
+    sha1 = Interner.id(sha1);
+    branches = Interner.branches(branches);
+    return this;
+  }
+
   @Override
   public Revision clone()
   {
@@ -0,0 +1,46 @@
+package hudson.plugins.git;
+
+import hudson.model.Action;
+
+import java.io.Serializable;
+
+/**
+ * The revision a build was scheduled to build. A build carrying it checks
+ * the revision out instead of picking one of the candidate revisions.
+ */
+public class RevisionParameterAction implements Action, Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final Revision revision;
+
+	public RevisionParameterAction(Revision revision)
+	{
+		this.revision = revision;
+	}
+
+	public Revision getRevision()
+	{
+		return revision;
+	}
+
+	public String getIconFileName()
+	{
+		return null;
+	}
+
+	public String getDisplayName()
+	{
+		return null;
+	}
+
+	public String getUrlName()
+	{
+		return null;
+	}
+
+	public @Override String toString()
+	{
+		return "RevisionParameterAction " + revision;
+	}
+}
@@ -25,6 +25,11 @@ public class GitWeb extends GitRepositoryBrowser {
     private static final long serialVersionUID = 1L;
     private final URL url;
 
+    /**
+     * Start of every link, computed from {@link #url} on first use.
+     */
+    private transient String prefix;
+
     @DataBoundConstructor
     public GitWeb(String url) throws MalformedURLException {
         this.url = normalizeToEndWithSlash(new URL(url));
@@ -36,11 +41,22 @@ public class GitWeb extends GitRepositoryBrowser {
 
     @Override
     public URL getChangeSetLink(GitChangeSet changeSet) throws IOException {
-        return new URL(url, url.getPath()+param().add("a=commit").add("h=" + changeSet.getId()).toString());
+        return new URL(query().append("a=commit&h=").append(changeSet.getId()).toString());
     }
 
-    private QueryBuilder param() {
-        return new QueryBuilder(url.getQuery());
+    /**
+     * Starts a link to this GitWeb: the URL, then the query of the URL if
+     * any, ready for more parameters. Same as the {@link QueryBuilder} the
+     * links used to be built with, but the prefix is computed only once.
+     */
+    private StringBuilder query() throws MalformedURLException {
+        String prefix = this.prefix;
+        if (prefix == null) {
+            String query = url.getQuery();
+            prefix = new URL(url, url.getPath()).toExternalForm() + (query == null ? "?" : "?" + query + "&");
+            this.prefix = prefix;
+        }
+        return new StringBuilder(prefix.length() + 160).append(prefix);
     }
 
     /**
@@ -53,15 +69,21 @@ public class GitWeb extends GitRepositoryBrowser {
      */
     @Override
     public URL getDiffLink(Path path) throws IOException {
+        String link = getDiffLinkString(path);
+        return link == null ? null : new URL(link);
+    }
+
+    @Override
+    protected String createDiffLink(Path path) throws IOException {
         if (path.getEditType() != EditType.EDIT || path.getSrc() == null || path.getDst() == null
                 || path.getChangeSet().getParentCommit() == null) {
             return null;
         }
         GitChangeSet changeSet = path.getChangeSet();
-        String spec = param().add("a=blobdiff").add("f=" + path.getPath()).add("fp=" + path.getPath())
-                             .add("h=" + path.getSrc()).add("hp=" + path.getDst())
-                             .add("hb=" + changeSet.getId()).add("hpb=" + changeSet.getParentCommit()).toString();
-        return new URL(url, url.getPath()+spec);
+        return query().append("a=blobdiff&f=").append(path.getPath()).append("&fp=").append(path.getPath())
+                      .append("&h=").append(path.getSrc()).append("&hp=").append(path.getDst())
+                      .append("&hb=").append(changeSet.getId()).append("&hpb=").append(changeSet.getParentCommit())
+                      .toString();
     }
 
     /**
@@ -73,10 +95,15 @@ public class GitWeb extends GitRepositoryBrowser {
      */
     @Override
     public URL getFileLink(Path path) throws IOException {
+        return new URL(getFileLinkString(path));
+    }
+
+    @Override
+    protected String createFileLink(Path path) throws IOException {
         String h = (path.getDst() != null) ? path.getDst() : path.getSrc();
-        String spec = param().add("a=blob").add("f=" + path.getPath())
-                             .add("h=" + h).add("hb=" + path.getChangeSet().getId()).toString();
-        return new URL(url, url.getPath()+spec);
+        return query().append("a=blob&f=").append(path.getPath())
+                      .append("&h=").append(h).append("&hb=").append(path.getChangeSet().getId())
+                      .toString();
     }
 
     @Extension
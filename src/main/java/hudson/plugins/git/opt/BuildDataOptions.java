@@ -0,0 +1,65 @@
+package hudson.plugins.git.opt;
+
+import java.io.Serializable;
+
+/**
+ * Options controlling which branches are kept in the build data of a job.
+ */
+public class BuildDataOptions implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Forget branches that no longer exist in their remote repository.
+	 */
+	public boolean pruneDeletedBranches = false;
+
+	/**
+	 * Forget branches not built for this many days, 0 to keep them.
+	 */
+	public int pruneAfterDays = 0;
+
+	/**
+	 * Keep the branches in the job's build history store rather than in
+	 * the record of every build.
+	 */
+	public boolean useHistoryStore = false;
+
+    public boolean isPruneDeletedBranches()
+    {
+        return pruneDeletedBranches;
+    }
+
+    public void setPruneDeletedBranches(boolean pruneDeletedBranches)
+    {
+        this.pruneDeletedBranches = pruneDeletedBranches;
+    }
+
+    public int getPruneAfterDays()
+    {
+        return pruneAfterDays;
+    }
+
+    public void setPruneAfterDays(int pruneAfterDays)
+    {
+        this.pruneAfterDays = Math.max(0, pruneAfterDays);
+    }
+
+    public boolean isUseHistoryStore()
+    {
+        return useHistoryStore;
+    }
+
+    public void setUseHistoryStore(boolean useHistoryStore)
+    {
+        this.useHistoryStore = useHistoryStore;
+    }
+
+    /**
+     * True if branches are pruned at all.
+     */
+    public boolean doPrune()
+    {
+        return pruneDeletedBranches || pruneAfterDays > 0;
+    }
+}
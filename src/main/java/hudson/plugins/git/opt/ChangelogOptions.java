@@ -0,0 +1,57 @@
+package hudson.plugins.git.opt;
+
+import java.io.Serializable;
+
+/**
+ * Options controlling how the changelog of a build is recorded.
+ */
+public class ChangelogOptions implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Maximum number of commits recorded per build, 0 for no limit.
+	 */
+	public int maxCommits = 0;
+
+	/**
+	 * Maximum number of paths recorded per commit, 0 for no limit.
+	 */
+	public int maxPathsPerCommit = 0;
+
+	/**
+	 * Record only the revision ranges during checkout, and the changelog
+	 * itself in the background while the build runs.
+	 */
+	public boolean recordInBackground = false;
+
+    public int getMaxCommits()
+    {
+        return maxCommits;
+    }
+
+    public void setMaxCommits(int maxCommits)
+    {
+        this.maxCommits = Math.max(0, maxCommits);
+    }
+
+    public int getMaxPathsPerCommit()
+    {
+        return maxPathsPerCommit;
+    }
+
+    public void setMaxPathsPerCommit(int maxPathsPerCommit)
+    {
+        this.maxPathsPerCommit = Math.max(0, maxPathsPerCommit);
+    }
+
+    public boolean isRecordInBackground()
+    {
+        return recordInBackground;
+    }
+
+    public void setRecordInBackground(boolean recordInBackground)
+    {
+        this.recordInBackground = recordInBackground;
+    }
+}
@@ -0,0 +1,128 @@
+package hudson.plugins.git.opt;
+
+import hudson.plugins.git.BranchSpec;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options controlling how the builds of a job are scheduled by polling.
+ */
+public class SchedulingOptions implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Schedule a build for every new revision found by polling, rather than
+	 * a single build that picks one of them.
+	 */
+	public boolean buildEachCandidate = false;
+
+	/**
+	 * Keep the revisions found by polling in a queue in the job directory
+	 * until they are built, updated from the branches that moved.
+	 */
+	public boolean queueRevisions = false;
+
+	/**
+	 * Number of commits the Gerrit strategy verifies at once, bisecting
+	 * the batch when its newest commit fails, 0 to build every commit.
+	 */
+	public int gerritBatchSize = 0;
+
+	/**
+	 * Have the Gerrit strategy build the commits with no ancestry relation
+	 * to each other in parallel builds.
+	 */
+	public boolean gerritParallel = false;
+
+	/**
+	 * Branch patterns, one per line, the priority chooser builds the
+	 * branches of in order.
+	 */
+	public String branchPriorities = null;
+
+	/**
+	 * Seconds a branch must be left alone before the priority chooser
+	 * builds it when polling, 0 to build it straight away.
+	 */
+	public int coalesceSeconds = 0;
+
+    public boolean isBuildEachCandidate()
+    {
+        return buildEachCandidate;
+    }
+
+    public void setBuildEachCandidate(boolean buildEachCandidate)
+    {
+        this.buildEachCandidate = buildEachCandidate;
+    }
+
+    public boolean isQueueRevisions()
+    {
+        return queueRevisions;
+    }
+
+    public void setQueueRevisions(boolean queueRevisions)
+    {
+        this.queueRevisions = queueRevisions;
+    }
+
+    public int getGerritBatchSize()
+    {
+        return gerritBatchSize;
+    }
+
+    public void setGerritBatchSize(int gerritBatchSize)
+    {
+        this.gerritBatchSize = Math.max(0, gerritBatchSize);
+    }
+
+    public boolean isGerritParallel()
+    {
+        return gerritParallel;
+    }
+
+    public void setGerritParallel(boolean gerritParallel)
+    {
+        this.gerritParallel = gerritParallel;
+    }
+
+    public String getBranchPriorities()
+    {
+        return branchPriorities;
+    }
+
+    public void setBranchPriorities(String branchPriorities)
+    {
+        this.branchPriorities = branchPriorities;
+    }
+
+    /**
+     * The branch patterns in order of priority.
+     */
+    public List<BranchSpec> getPriorityPatterns()
+    {
+        List<BranchSpec> patterns = new ArrayList<BranchSpec>();
+        if (branchPriorities != null)
+        {
+            for (String pattern : branchPriorities.split("\\s+"))
+            {
+                if (pattern.length() > 0)
+                    patterns.add(new BranchSpec(pattern));
+            }
+        }
+        return patterns;
+    }
+
+    public int getCoalesceSeconds()
+    {
+        return coalesceSeconds;
+    }
+
+    public void setCoalesceSeconds(int coalesceSeconds)
+    {
+        this.coalesceSeconds = Math.max(0, coalesceSeconds);
+    }
+}
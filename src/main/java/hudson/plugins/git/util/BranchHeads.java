@@ -0,0 +1,127 @@
+package hudson.plugins.git.util;
+
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * When polling first saw the head of each branch a job could build, kept in
+ * the job directory, so that the priority chooser leaves a branch alone
+ * until it settles. The time the head was pushed is what matters rather
+ * than the time it was committed, which may be long before.
+ * <p>
+ * There is a single instance per job in a JVM, and every change is written
+ * to the file, replacing it atomically.
+ */
+public class BranchHeads
+{
+    private static final Map<File, BranchHeads> HEADS = new HashMap<File, BranchHeads>();
+
+    private transient File dir;
+
+    /**
+     * The head of each branch, by branch name, and when it was first seen.
+     */
+    private Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+    private Map<String, Long>     seen = new HashMap<String, Long>();
+
+    private static XmlFile getFile(File dir)
+    {
+        return new XmlFile(Run.XSTREAM, new File(dir, "git-branch-heads.xml"));
+    }
+
+    /**
+     * Get the heads of a job, reading them from the job directory the first
+     * time.
+     */
+    public static BranchHeads forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (HEADS)
+        {
+            BranchHeads heads = HEADS.get(dir);
+            if (heads == null)
+            {
+                XmlFile file = getFile(dir);
+                if (file.exists())
+                {
+                    try
+                    {
+                        heads = (BranchHeads) file.read();
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.log(Level.WARNING, "Failed to read " + file + ", seeing every branch anew", e);
+                    }
+                }
+                if (heads == null)
+                    heads = new BranchHeads();
+                heads.dir = dir;
+                HEADS.put(dir, heads);
+            }
+            return heads;
+        }
+    }
+
+    /**
+     * Note the heads of the revisions found by a poll, and keep those that
+     * have settled: a revision has settled once it has been the head of one
+     * of its branches for the coalescing period. The branches not found are
+     * forgotten.
+     *
+     * @param candidates the revisions found, in order
+     * @param now the time of the poll
+     * @param period the coalescing period, in milliseconds
+     * @return the revisions that settled, in the same order
+     */
+    public synchronized List<Revision> settle(Collection<Revision> candidates, long now, long period) throws IOException
+    {
+        Map<String, ObjectId> newHeads = new HashMap<String, ObjectId>();
+        Map<String, Long> newSeen = new HashMap<String, Long>();
+        List<Revision> settled = new ArrayList<Revision>();
+        for (Revision r : candidates)
+        {
+            long first = now;
+            for (Branch b : r.getBranches())
+            {
+                Long time = r.getSha1().equals(heads.get(b.getName())) ? seen.get(b.getName()) : null;
+                if (time == null)
+                    time = now;
+                newHeads.put(b.getName(), r.getSha1());
+                newSeen.put(b.getName(), time);
+                first = Math.min(first, time);
+            }
+            if (first <= now - period)
+                settled.add(r);
+        }
+        if (!newHeads.equals(heads))
+        {
+            heads = newHeads;
+            seen = newSeen;
+            save();
+        }
+        return settled;
+    }
+
+    private void save() throws IOException
+    {
+        if (dir != null)
+            getFile(dir).write(this);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BranchHeads.class.getName());
+}
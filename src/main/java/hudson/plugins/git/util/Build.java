@@ -27,12 +27,28 @@ public class Build implements Serializable, Cloneable
 	public int      hudsonBuildNumber;
 	public Result   hudsonBuildResult;
 
+	/**
+	 * When the revision was built, 0 if not recorded.
+	 */
+	private long    timestamp;
+
 	// TODO: We don't currently store the result correctly.
 
 	public Build(Revision revision, int buildNumber, Result result) {
 		this.revision = revision;
 		this.hudsonBuildNumber = buildNumber;
 		this.hudsonBuildResult = result;
+		this.timestamp = System.currentTimeMillis();
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	void setTimestamp(long timestamp)
+	{
+		this.timestamp = timestamp;
 	}
 
 	public ObjectId getSHA1()
@@ -19,12 +19,12 @@ import org.spearce.jgit.lib.ObjectId;
 
 public class BuildChooser implements IBuildChooser {
 
-    private final IGitAPI               git;
-    private final GitUtils              utils;
-    private final GitSCM                gitSCM;
+    protected final IGitAPI             git;
+    protected final GitUtils            utils;
+    protected final GitSCM              gitSCM;
 
     //-------- Data -----------
-    private final BuildData             data;
+    protected final BuildData           data;
 
     public BuildChooser(GitSCM gitSCM, IGitAPI git, GitUtils utils, BuildData data)
     {
@@ -181,7 +181,7 @@ public class BuildChooser implements IBuildChooser {
     public Build revisionBuilt(Revision revision, int buildNumber, Result result )
     {
         Build build = new Build(revision, buildNumber, result);
-        data.saveBuild(build);
+        utils.saveBuild(data, build, gitSCM);
         return build;
     }
 
@@ -1,34 +1,152 @@
 package hudson.plugins.git.util;
 
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
 import hudson.plugins.git.Branch;
+import hudson.plugins.git.GitException;
 import hudson.plugins.git.Revision;
+import hudson.remoting.VirtualChannel;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import net.sf.json.util.JSONUtils;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 import org.spearce.jgit.lib.ObjectId;
 
+/**
+ * The branches built by a job, as of a build.
+ * <p>
+ * Most builds only build a few of the branches, so rather than a full copy
+ * of the branches every build stores the branches built since the last
+ * snapshot: a build which stores all of them. A new snapshot is taken every
+ * {@link #SNAPSHOT_INTERVAL} builds, or when the changes get large compared
+ * to it. In memory, a build shares the branches of its snapshot.
+ * <p>
+ * A copy of every snapshot is kept in the job directory for as long as a
+ * build refers to it, so that deltas outlive the build of their snapshot.
+ * The snapshot is found through the job of the build the data belongs to,
+ * which {@link #of(Run)} links it to, rather than by job name.
+ * <p>
+ * Alternatively the branches of a job are kept in its
+ * {@link BuildHistoryStore}, and the data of a build only records its last
+ * build and is otherwise a facade to the store.
+ */
 @ExportedBean( defaultVisibility = 999)
 public class BuildData implements Action, Serializable, Cloneable
 {
 	private static final long serialVersionUID = 1L;
 
 	/**
-	 * Map of branch name -> build (Branch name to last built SHA1).
+	 * Number of builds after which a new snapshot of the branches is taken.
+	 */
+	public static final int SNAPSHOT_INTERVAL = Integer.getInteger(BuildData.class.getName() + ".snapshotInterval", 50);
+
+	/**
+	 * Map of branch name -> build (Branch name to last built SHA1): all the
+	 * branches for a snapshot, otherwise those built since the snapshot,
+	 * with null for the branches pruned since the snapshot.
 	 */
-    public Map<String, Build> buildsByBranchName = new HashMap<String, Build>();
+    private Map<String, Build> buildsByBranchName = new HashMap<String, Build>();
 
     /**
      * The last build that we did.
      */
     public Build              lastBuild;
 
+    /**
+     * Full name of the job and number of the build recording this data,
+     * so that later builds can refer to it as their snapshot. Null for data
+     * recorded before snapshots were introduced.
+     */
+    private String projectName;
+    private int    buildNumber;
+
+    /**
+     * Job and build holding the snapshot, if this data is a delta. The job
+     * is only looked up by name if the data is not linked to its build.
+     */
+    private String baseProject;
+    private int    baseBuildNumber;
+    private int    buildsSinceSnapshot;
+
+    /**
+     * Number of branches pruned by this build, and by all builds so far.
+     */
+    private int prunedBranches;
+    private int totalPrunedBranches;
+
+    /**
+     * The snapshot, once resolved. Not written to the build record, see
+     * {@link hudson.plugins.git.PluginImpl#start()}.
+     */
+    private BuildData base;
+
+    /**
+     * Full name of the job whose {@link BuildHistoryStore} holds the
+     * branches, or null if they are held here. On the master the store is
+     * looked up each time, as it is closed when its job is deleted or
+     * reloaded; a copy sent to a workspace holds a proxy to it, which is not
+     * written to the build record either.
+     */
+    private String            storeProject;
+    private BuildHistoryStore store;
+
+    /**
+     * The build recording this data, once linked to it.
+     */
+    private transient Run<?, ?> owner;
+
+    private transient Map<String, Build> view;
+
+    /**
+     * Set once the snapshot was looked for and is gone.
+     */
+    private transient boolean baseMissing;
+
+    /**
+     * Branch names sorted by name, and by build, for paging, and the
+     * modification count of the store they were sorted at.
+     */
+    private transient String[] namesByName;
+    private transient String[] namesByBuild;
+    private transient long     namesModificationCount;
+
+    /**
+     * Default and maximum number of branches in a page.
+     */
+    public static final int PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
 
     public String getDisplayName()
     {
@@ -43,6 +161,305 @@ public class BuildData implements Action, Serializable, Cloneable
         return "git";
     }
 
+    /**
+     * The data recorded by a build, linked to the build.
+     *
+     * @return the data, or null if the build recorded none
+     */
+    public static BuildData of(Run<?, ?> build)
+    {
+        BuildData data = build.getAction(BuildData.class);
+        if (data != null)
+            data.setOwner(build);
+        return data;
+    }
+
+    private synchronized void setOwner(Run<?, ?> build)
+    {
+        owner = build;
+    }
+
+    /**
+     * The job of the build recording this data, or, while the data is not
+     * linked to its build, the job of that name.
+     */
+    private synchronized AbstractProject<?, ?> getProject(String fullName)
+    {
+        if (owner == null)
+        {
+            // served as an action of its build
+            StaplerRequest req = Stapler.getCurrentRequest();
+            Run<?, ?> run = req == null ? null : req.findAncestorObject(Run.class);
+            if (run != null && run.getActions().contains(this))
+                owner = run;
+        }
+        if (owner != null)
+            return owner.getParent() instanceof AbstractProject ? (AbstractProject<?, ?>) owner.getParent() : null;
+        return fullName == null ? null : Hudson.getInstance().getItemByFullName(fullName, AbstractProject.class);
+    }
+
+    /**
+     * Branch name -> build, for all the branches built.
+     */
+    public synchronized Map<String, Build> getBuildsByBranchName()
+    {
+        if (view == null)
+        {
+            BuildData snapshot = getBase();
+            Map<String, Build> branches;
+            if (usesStore())
+                branches = new StoreView(this);
+            else if (snapshot == null)
+                branches = Collections.unmodifiableMap(buildsByBranchName);
+            else
+                branches = new Overlay(buildsByBranchName, snapshot.getBuildsByBranchName());
+            if (!isSnapshot() && base == null)
+                return branches; // the snapshot is not found yet
+            view = branches;
+        }
+        return view;
+    }
+
+    /**
+     * True if this data holds all the branches, rather than the changes
+     * since a snapshot.
+     */
+    public boolean isSnapshot()
+    {
+        return baseBuildNumber == 0;
+    }
+
+    /**
+     * True if the branches are kept in the job's {@link BuildHistoryStore}.
+     */
+    public boolean usesStore()
+    {
+        return storeProject != null;
+    }
+
+    private synchronized BuildHistoryStore getStore()
+    {
+        if (store != null || !usesStore())
+            return store;
+        AbstractProject<?, ?> project = getProject(storeProject);
+        if (project == null)
+            throw new GitException("No job " + storeProject + " to hold the build history");
+        try
+        {
+            return BuildHistoryStoreFactory.forProject(project);
+        }
+        catch (IOException e)
+        {
+            throw new GitException("Unable to open the build history of " + storeProject, e);
+        }
+    }
+
+    /**
+     * Keep the branches in the store of a job from now on. The first time
+     * the store is used, it is filled with the branches held here.
+     */
+    public synchronized void useStore(AbstractProject<?, ?> project)
+    {
+        if (usesStore())
+            return;
+        BuildHistoryStore target;
+        try
+        {
+            target = BuildHistoryStoreFactory.forProject(project);
+            if (target.getLastBuild() == null)
+                importInto(target);
+        }
+        catch (IOException e)
+        {
+            throw new GitException("Unable to fill the build history of " + project.getFullName(), e);
+        }
+        storeProject = project.getFullName();
+        buildsByBranchName = new HashMap<String, Build>();
+        base = null;
+        baseProject = null;
+        baseBuildNumber = 0;
+        buildsSinceSnapshot = 0;
+        view = null;
+        namesByName = namesByBuild = null;
+    }
+
+    /**
+     * Hold the branches here again, as a snapshot, rather than in a store.
+     */
+    public synchronized void leaveStore()
+    {
+        if (!usesStore())
+            return;
+        buildsByBranchName = new HashMap<String, Build>(getBuildsByBranchName());
+        storeProject = null;
+        store = null;
+        view = null;
+        namesByName = namesByBuild = null;
+    }
+
+    /**
+     * Save the builds of the branches held here into a store, oldest first
+     * so that the store ends up with the same last build of each branch.
+     */
+    synchronized void importInto(BuildHistoryStore target) throws IOException
+    {
+        Map<String, Build> branches = getBuildsByBranchName();
+        List<Build> builds = new ArrayList<Build>(new HashSet<Build>(branches.values()));
+        if (lastBuild != null && !builds.contains(lastBuild))
+            builds.add(lastBuild);
+        Collections.sort(builds, new Comparator<Build>()
+        {
+            public int compare(Build a, Build b)
+            {
+                int x = a.hudsonBuildNumber;
+                int y = b.hudsonBuildNumber;
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        for (Build build : builds)
+        {
+            target.saveBuild(build);
+        }
+        // a build also names the branches pruned since
+        for (String name : target.getBranchNames())
+        {
+            if (!branches.containsKey(name))
+                target.removeBranch(name);
+        }
+    }
+
+    /**
+     * This data, to be sent to a workspace on the other end of a channel. If
+     * the branches are kept in a store, the copy reaches it through a proxy.
+     */
+    public BuildData forChannel(VirtualChannel channel)
+    {
+        if (!usesStore())
+            return this;
+        BuildHistoryStore local = getStore();
+        BuildData copy = clone0();
+        copy.store = channel.export(BuildHistoryStore.class, local);
+        copy.view = null;
+        return copy;
+    }
+
+    /**
+     * The snapshot this data is a delta of.
+     *
+     * @return the snapshot, or null if this data is one or if it cannot be
+     *         found
+     */
+    private synchronized BuildData getBase()
+    {
+        if (base == null && !isSnapshot() && !baseMissing)
+        {
+            AbstractProject<?, ?> project = getProject(baseProject);
+            if (project == null)
+            {
+                // not linked to its build, and the job was renamed
+                LOGGER.fine("Job " + baseProject + " of snapshot build #" + baseBuildNumber + " not found");
+                return null;
+            }
+            Run<?, ?> build = project.getBuildByNumber(baseBuildNumber);
+            base = build == null ? null : build.getAction(BuildData.class);
+            if (base == null)
+                base = readSnapshot(project.getRootDir(), baseBuildNumber);
+            if (base == null)
+            {
+                // recorded before snapshots were kept in the job directory,
+                // and the snapshot build was deleted
+                LOGGER.warning("Snapshot build #" + baseBuildNumber + " of " + project.getFullName()
+                        + " is gone, only the branches built since are known");
+                baseMissing = true;
+            }
+        }
+        return base;
+    }
+
+    private static File getSnapshotFile(File jobDir, int buildNumber)
+    {
+        return new File(new File(jobDir, "git-snapshots"), buildNumber + ".xml");
+    }
+
+    /**
+     * Keep a copy of this data in the job directory, if it is a snapshot
+     * later builds can refer to, once it is complete.
+     */
+    public void keepSnapshot(AbstractProject<?, ?> project) throws IOException
+    {
+        int snapshot = getSnapshotBuildNumber();
+        if (snapshot > 0 && buildNumber > 0)
+            SnapshotReferences.forProject(project).add(buildNumber, snapshot);
+        keepSnapshot(project.getRootDir());
+    }
+
+    synchronized void keepSnapshot(File jobDir) throws IOException
+    {
+        if (usesStore() || !isSnapshot() || projectName == null)
+            return;
+        File file = getSnapshotFile(jobDir, buildNumber);
+        file.getParentFile().mkdirs();
+        new XmlFile(Run.XSTREAM, file).write(this);
+    }
+
+    /**
+     * Read the copy of a snapshot kept in the job directory.
+     *
+     * @return the snapshot, or null if there is none
+     */
+    static BuildData readSnapshot(File jobDir, int buildNumber)
+    {
+        XmlFile file = new XmlFile(Run.XSTREAM, getSnapshotFile(jobDir, buildNumber));
+        if (!file.exists())
+            return null;
+        try
+        {
+            return (BuildData) file.read();
+        }
+        catch (IOException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Delete the copies of the snapshots older than the given build, which
+     * no build refers to any more.
+     */
+    static void pruneSnapshots(File jobDir, int oldest)
+    {
+        File[] files = new File(jobDir, "git-snapshots").listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!name.endsWith(".xml"))
+                continue;
+            try
+            {
+                if (Integer.parseInt(name.substring(0, name.length() - 4)) < oldest)
+                    file.delete();
+            }
+            catch (NumberFormatException e)
+            {
+                // not a snapshot
+            }
+        }
+    }
+
+    /**
+     * The number of the build holding the snapshot this data relies on, or
+     * 0 if it relies on none.
+     */
+    int getSnapshotBuildNumber()
+    {
+        if (usesStore())
+            return 0;
+        return isSnapshot() ? buildNumber : baseBuildNumber;
+    }
+
     /**
      * Return true if the history shows this SHA1 has been built.
      * False otherwise.
@@ -53,7 +470,10 @@ public class BuildData implements Action, Serializable, Cloneable
     {
     	try
     	{
-    		for(Build b : buildsByBranchName.values())
+    		if (usesStore())
+    			return getStore().getBuildOfSha1(sha1) != null;
+
+    		for(Build b : getBuildsByBranchName().values())
     		{
     			if( b.revision.getSha1().equals(sha1) )
     				return true;
@@ -67,20 +487,189 @@ public class BuildData implements Action, Serializable, Cloneable
     	}
     }
 
-    public void saveBuild(Build build)
+    public synchronized void saveBuild(Build build)
     {
     	lastBuild = build;
+    	if (usesStore())
+    	{
+    		try
+    		{
+    			getStore().saveBuild(build);
+    		}
+    		catch (IOException e)
+    		{
+    			throw new GitException("Unable to record " + build, e);
+    		}
+    		namesByName = namesByBuild = null;
+    		return;
+    	}
     	for( Branch branch : build.revision.getBranches() )
     	{
     		buildsByBranchName.put(branch.getName(), build);
     	}
+    	namesByName = namesByBuild = null;
+    }
+
+    /**
+     * Take the builds of the branches that another data has a later build
+     * of, such as the data recorded by builds that ran concurrently with
+     * this one. A branch pruned since this data's snapshot stays pruned.
+     * Data kept in a store needs no merging, as the store is shared.
+     * <p>
+     * Data not recorded by a build, such as a {@link #snapshot()}, also
+     * takes the last build of the other data if it is a later build, as
+     * builds may finish in any order. Data recorded by a build keeps that
+     * build as its last build.
+     *
+     * @return the number of branches taken from the other data
+     */
+    public synchronized int merge(BuildData other)
+    {
+        if (other == null || other == this)
+            return 0;
+        if (buildNumber == 0 && other.lastBuild != null
+                && (lastBuild == null || other.lastBuild.hudsonBuildNumber > lastBuild.hudsonBuildNumber))
+            lastBuild = other.lastBuild;
+        if (usesStore())
+            return 0;
+        Map<String, Build> branches = getBuildsByBranchName();
+        int merged = 0;
+        for (Map.Entry<String, Build> e : other.getBuildsByBranchName().entrySet())
+        {
+            String name = e.getKey();
+            Build ours = branches.get(name);
+            Build theirs = e.getValue();
+            if (ours == null ? !buildsByBranchName.containsKey(name) : theirs.hudsonBuildNumber > ours.hudsonBuildNumber)
+            {
+                buildsByBranchName.put(name, theirs);
+                merged++;
+            }
+        }
+        if (merged > 0)
+            namesByName = namesByBuild = null;
+        return merged;
+    }
+
+    /**
+     * Save a build, then prune the branches that are stale.
+     *
+     * @param remoteBranches the branches of the remote repositories, such as
+     *        <tt>origin/master</tt>; null to keep deleted branches
+     * @param remotes the names of those remote repositories. Branches not
+     *        prefixed by one of them, such as <tt>detached</tt>, are never
+     *        considered deleted.
+     * @param maxAge time in milliseconds after which a branch that was not
+     *        built is pruned, 0 to keep branches however old
+     */
+    public void saveBuild(Build build, Collection<String> remoteBranches, Collection<String> remotes, long maxAge)
+    {
+    	saveBuild(build);
+    	compact(remoteBranches, remotes, maxAge, System.currentTimeMillis());
+    }
+
+    /**
+     * Drop the branches that are gone from their remote repository, or that
+     * have not been built for longer than the given age.
+     *
+     * @return the number of branches dropped
+     */
+    synchronized int compact(Collection<String> remoteBranches, Collection<String> remotes, long maxAge, long now)
+    {
+        Set<String> existing = remoteBranches == null ? null : new HashSet<String>(remoteBranches);
+        List<String> stale = new ArrayList<String>();
+        for (Map.Entry<String, Build> e : getBuildsByBranchName().entrySet())
+        {
+            String name = e.getKey();
+            Build build = e.getValue();
+            if (build == lastBuild)
+                continue;
+            boolean deleted = existing != null && !existing.contains(name) && isRemoteBranch(name, remotes);
+            boolean old = maxAge > 0 && build.getTimestamp() != 0 && now - build.getTimestamp() > maxAge;
+            if (deleted || old)
+                stale.add(name);
+        }
+
+        remove(stale);
+        prunedBranches += stale.size();
+        totalPrunedBranches += stale.size();
+        return stale.size();
+    }
+
+    /**
+     * Drop branches that are no longer needed, such as the changes the
+     * Gerrit strategy built in parallel once all of them have been built.
+     */
+    public synchronized void removeBranches(Collection<String> names)
+    {
+        List<String> removed = new ArrayList<String>();
+        for (String name : names)
+        {
+            if (getLastBuildOfBranch(name) != null)
+                removed.add(name);
+        }
+        remove(removed);
+    }
+
+    private void remove(List<String> names)
+    {
+        for (String name : names)
+        {
+            if (usesStore())
+                removeFromStore(name);
+            else if (isSnapshot())
+                buildsByBranchName.remove(name);
+            else
+                buildsByBranchName.put(name, null);
+        }
+        if (!names.isEmpty())
+            namesByName = namesByBuild = null;
+    }
+
+    private void removeFromStore(String name)
+    {
+        try
+        {
+            getStore().removeBranch(name);
+        }
+        catch (IOException e)
+        {
+            throw new GitException("Unable to prune " + name, e);
+        }
+    }
+
+    private static boolean isRemoteBranch(String name, Collection<String> remotes)
+    {
+        for (String remote : remotes)
+        {
+            if (name.startsWith(remote + "/"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of stale branches pruned when this build was recorded.
+     */
+    @Exported
+    public int getPrunedBranches()
+    {
+        return prunedBranches;
+    }
+
+    /**
+     * Number of stale branches pruned by this build and the ones before it.
+     */
+    @Exported
+    public int getTotalPrunedBranches()
+    {
+        return totalPrunedBranches;
     }
 
     public Build getLastBuildOfBranch(String branch)
     {
     	try
     	{
-    		return buildsByBranchName.get(branch);
+    		return getBuildsByBranchName().get(branch);
     	}
     	catch(Exception ex)
     	{
@@ -93,52 +682,633 @@ public class BuildData implements Action, Serializable, Cloneable
 		return lastBuild==null?null:lastBuild.revision;
 	}
 
+    /**
+     * Record the build this data belongs to, once it is back on the master.
+     *
+     * @param sent the data the build started from, whose snapshot is shared
+     *        instead of the copy that came back from the workspace
+     */
+    public void recordedBy(Run<?, ?> build, BuildData sent)
+    {
+        setOwner(build);
+        recordedBy(build.getParent().getFullName(), build.getNumber(), sent);
+    }
+
+    synchronized void recordedBy(String projectName, int buildNumber, BuildData sent)
+    {
+        this.projectName = projectName;
+        this.buildNumber = buildNumber;
+        if (usesStore())
+        {
+            // came back from a workspace: resolve the store locally again
+            store = null;
+            view = null;
+            namesByName = namesByBuild = null;
+            return;
+        }
+        if (sent != null && sent != this && !isSnapshot() && sent.baseBuildNumber == baseBuildNumber
+                && baseProject.equals(sent.baseProject) && sent.base != null)
+        {
+            base = sent.base;
+            view = null;
+            namesByName = namesByBuild = null;
+        }
+    }
+
+    /**
+     * A full copy of the branches, not tied to any build.
+     */
+    public BuildData snapshot()
+    {
+        BuildData snapshot = new BuildData();
+        if (usesStore())
+        {
+            snapshot.storeProject = storeProject;
+            snapshot.lastBuild = lastBuild;
+            return snapshot;
+        }
+        snapshot.buildsByBranchName = new HashMap<String, Build>(getBuildsByBranchName());
+        snapshot.lastBuild = lastBuild;
+        return snapshot;
+    }
+
+    /**
+     * Data for the next build. Builds are immutable once recorded, so the
+     * copy shares them, and shares the snapshot instead of copying every
+     * branch.
+     */
 	@Override
-	public BuildData clone()
+	public synchronized BuildData clone()
+	{
+		BuildData clone = clone0();
+
+		clone.projectName = null;
+		clone.buildNumber = 0;
+		clone.owner = null;
+		clone.prunedBranches = 0;
+		clone.view = null;
+		clone.namesByName = clone.namesByBuild = null;
+
+		if (usesStore())
+		{
+			// the store is shared
+			clone.buildsByBranchName = new HashMap<String, Build>();
+			return clone;
+		}
+
+		BuildData snapshot = isSnapshot() ? this : getBase();
+		if (snapshot == null)
+		{
+			// stay a delta of the missing snapshot, as a snapshot taken
+			// from the changes alone would lose every other branch
+			clone.buildsByBranchName = new HashMap<String, Build>(buildsByBranchName);
+			clone.buildsSinceSnapshot = buildsSinceSnapshot + 1;
+			return clone;
+		}
+		int changes = isSnapshot() ? 0 : buildsByBranchName.size();
+		if (snapshot.projectName == null
+				|| buildsSinceSnapshot + 1 >= SNAPSHOT_INTERVAL
+				|| changes > Math.max(100, snapshot.buildsByBranchName.size() / 2))
+		{
+			// take a new snapshot
+			clone.buildsByBranchName = new HashMap<String, Build>(getBuildsByBranchName());
+			clone.base = null;
+			clone.baseProject = null;
+			clone.baseBuildNumber = 0;
+			clone.buildsSinceSnapshot = 0;
+		}
+		else
+		{
+			clone.buildsByBranchName = new HashMap<String, Build>(isSnapshot() ? Collections.<String, Build>emptyMap() : buildsByBranchName);
+			clone.base = snapshot;
+			clone.baseProject = snapshot.projectName;
+			clone.baseBuildNumber = snapshot.buildNumber;
+			clone.buildsSinceSnapshot = buildsSinceSnapshot + 1;
+		}
+
+		return clone;
+	}
+
+	private BuildData clone0()
 	{
-		BuildData clone;
 		try
 		{
-			clone = (BuildData) super.clone();
+			return (BuildData) super.clone();
 		}
 		catch (CloneNotSupportedException e)
 		{
 			throw new RuntimeException("Error cloning BuildData", e);
 		}
+	}
+
+	private Object readResolve()
+	{
+		if (buildsByBranchName == null)
+		{
+			buildsByBranchName = new HashMap<String, Build>();
+		}
+		else
+		{
+			// the branches are repeated in the records of the builds that
+			// followed them; their revisions intern their own names and SHA1s
+			Map<String, Build> interned = new HashMap<String, Build>(buildsByBranchName.size() * 4 / 3 + 1);
+			for (Map.Entry<String, Build> e : buildsByBranchName.entrySet())
+			{
+				interned.put(Interner.name(e.getKey()), e.getValue());
+			}
+			buildsByBranchName = interned;
+		}
+		return this;
+	}
+
+    /**
+     * A page of the built branches.
+     *
+     * @param prefix only the branches whose name starts with this, or null
+     * @param byBuild sort by build, newest first, rather than by name
+     * @param start index of the first branch of the page
+     * @param count number of branches in the page, at most {@link #MAX_PAGE_SIZE}
+     */
+    public synchronized BranchPage getBranches(String prefix, boolean byBuild, int start, int count)
+    {
+        if (prefix == null)
+            prefix = "";
+        start = Math.max(0, start);
+        count = Math.max(0, Math.min(count, MAX_PAGE_SIZE));
+        Map<String, Build> branches = getBuildsByBranchName();
+        List<String> names = new ArrayList<String>(Math.min(count, 64));
+        int total;
+
+        if (!byBuild)
+        {
+            // the matching names are a range of the sorted names
+            String[] sorted = getNamesByName();
+            int from = lowerBound(sorted, prefix);
+            int to = prefix.length() == 0 ? sorted.length : lowerBound(sorted, prefix + Character.MAX_VALUE);
+            total = to - from;
+            for (int i = from + start; i < to && names.size() < count; i++)
+            {
+                names.add(sorted[i]);
+            }
+        }
+        else
+        {
+            total = 0;
+            for (String name : getNamesByBuild())
+            {
+                if (!name.startsWith(prefix))
+                    continue;
+                if (total >= start && names.size() < count)
+                    names.add(name);
+                total++;
+            }
+        }
+
+        List<Build> builds = new ArrayList<Build>(names.size());
+        for (String name : names)
+        {
+            builds.add(branches.get(name));
+        }
+        return new BranchPage(prefix, byBuild, start, total, names, builds);
+    }
+
+    public int getPageSize()
+    {
+        return PAGE_SIZE;
+    }
+
+    private String[] getNamesByName()
+    {
+        // other builds add to a store
+        long count = getStoreModificationCount();
+        if (namesByName == null || count != namesModificationCount)
+        {
+            String[] names = getBuildsByBranchName().keySet().toArray(new String[0]);
+            Arrays.sort(names);
+            namesByName = names;
+            namesByBuild = null;
+            namesModificationCount = count;
+        }
+        return namesByName;
+    }
+
+    private String[] getNamesByBuild()
+    {
+        String[] sorted = getNamesByName();
+        if (namesByBuild == null)
+        {
+            // each build is looked up once, rather than on every comparison
+            Map<String, Build> branches = getBuildsByBranchName();
+            final Map<String, Integer> numbers = new HashMap<String, Integer>();
+            for (String name : sorted)
+            {
+                Build build = branches.get(name);
+                numbers.put(name, build == null ? 0 : build.hudsonBuildNumber);
+            }
+            String[] names = sorted.clone();
+            // stable, so branches of the same build stay sorted by name
+            Arrays.sort(names, new Comparator<String>()
+            {
+                public int compare(String a, String b)
+                {
+                    int x = numbers.get(a);
+                    int y = numbers.get(b);
+                    return x > y ? -1 : x < y ? 1 : 0;
+                }
+            });
+            namesByBuild = names;
+        }
+        return namesByBuild;
+    }
+
+    private long getStoreModificationCount()
+    {
+        if (!usesStore())
+            return 0;
+        try
+        {
+            return getStore().getModificationCount();
+        }
+        catch (IOException e)
+        {
+            throw new GitException("Unable to read the built branches", e);
+        }
+    }
+
+    private static int lowerBound(String[] sorted, String key)
+    {
+        int i = Arrays.binarySearch(sorted, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Serves a page of the built branches as JSON:
+     * <tt>git/branches?prefix=origin/&amp;sort=build&amp;start=0&amp;count=100</tt>.
+     */
+    public void doBranches(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        BranchPage page = getBranches(req);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.print("{\"total\":");
+        w.print(page.getTotal());
+        w.print(",\"start\":");
+        w.print(page.getStart());
+        w.print(",\"branches\":[");
+        for (int i = 0; i < page.getNames().size(); i++)
+        {
+            Build build = page.getBuilds().get(i);
+            if (i > 0)
+                w.print(',');
+            w.print("{\"name\":");
+            w.print(JSONUtils.quote(page.getNames().get(i)));
+            w.print(",\"buildNumber\":");
+            w.print(build.hudsonBuildNumber);
+            w.print(",\"SHA1\":");
+            w.print(JSONUtils.quote(build.revision.getSha1String()));
+            w.print('}');
+        }
+        w.print("]}");
+    }
+
+    /**
+     * The page of branches asked for by the <tt>prefix</tt>, <tt>sort</tt>,
+     * <tt>start</tt> and <tt>count</tt> request parameters.
+     */
+    public BranchPage getBranches(StaplerRequest req)
+    {
+        return getBranches(req.getParameter("prefix"), "build".equals(req.getParameter("sort")),
+                parseInt(req.getParameter("start"), 0), parseInt(req.getParameter("count"), PAGE_SIZE));
+    }
+
+    private static int parseInt(String value, int defaultValue)
+    {
+        if (value == null)
+            return defaultValue;
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A page of the built branches, in the order asked for.
+     */
+    public static final class BranchPage
+    {
+        private final String      prefix;
+        private final boolean     byBuild;
+        private final int         start;
+        private final int         total;
+        private final List<String> names;
+        private final List<Build> builds;
+
+        BranchPage(String prefix, boolean byBuild, int start, int total, List<String> names, List<Build> builds)
+        {
+            this.prefix = prefix;
+            this.byBuild = byBuild;
+            this.start = start;
+            this.total = total;
+            this.names = names;
+            this.builds = builds;
+        }
+
+        public String getPrefix()
+        {
+            return prefix;
+        }
+
+        public boolean isByBuild()
+        {
+            return byBuild;
+        }
+
+        public int getStart()
+        {
+            return start;
+        }
+
+        /**
+         * Number of branches matching the prefix, in all pages.
+         */
+        public int getTotal()
+        {
+            return total;
+        }
+
+        public List<String> getNames()
+        {
+            return names;
+        }
+
+        public List<Build> getBuilds()
+        {
+            return builds;
+        }
+
+        public boolean hasPrevious()
+        {
+            return start > 0;
+        }
+
+        public boolean hasNext()
+        {
+            return start + names.size() < total;
+        }
+    }
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	/**
+	 * Read-only view of the changes since a snapshot over the snapshot.
+	 */
+	private static final class Overlay extends AbstractMap<String, Build>
+	{
+		private final Map<String, Build> changes;
+		private final Map<String, Build> snapshot;
+
+		Overlay(Map<String, Build> changes, Map<String, Build> snapshot)
+		{
+			this.changes = changes;
+			this.snapshot = snapshot;
+		}
 
-		IdentityHashMap<Build, Build> clonedBuilds = new IdentityHashMap<Build, Build>();
+		@Override
+		public Build get(Object key)
+		{
+			// a pruned branch maps to null
+			if (changes.containsKey(key))
+				return changes.get(key);
+			return snapshot.get(key);
+		}
 
-		if (buildsByBranchName != null)
+		@Override
+		public boolean containsKey(Object key)
 		{
-			clone.buildsByBranchName = new HashMap<String, Build>();
-			for (Map.Entry<String, Build> buildByBranchName : buildsByBranchName.entrySet())
+			return get(key) != null;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Build>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, Build>>()
 			{
-				String branchName = buildByBranchName.getKey();
-				Build build = buildByBranchName.getValue();
-				Build clonedBuild = clonedBuilds.get(build);
-				if (clonedBuild == null)
+				@Override
+				public Iterator<Map.Entry<String, Build>> iterator()
+				{
+					return new Iterator<Map.Entry<String, Build>>()
+					{
+						private final Iterator<Map.Entry<String, Build>> own = changes.entrySet().iterator();
+						private final Iterator<Map.Entry<String, Build>> shared = snapshot.entrySet().iterator();
+						private Map.Entry<String, Build> next;
+
+						public boolean hasNext()
+						{
+							if (next != null)
+								return true;
+							while (own.hasNext())
+							{
+								Map.Entry<String, Build> e = own.next();
+								if (e.getValue() != null)
+								{
+									next = e;
+									return true;
+								}
+							}
+							while (shared.hasNext())
+							{
+								Map.Entry<String, Build> e = shared.next();
+								if (!changes.containsKey(e.getKey()))
+								{
+									next = e;
+									return true;
+								}
+							}
+							return false;
+						}
+
+						public Map.Entry<String, Build> next()
+						{
+							if (!hasNext())
+								throw new NoSuchElementException();
+							Map.Entry<String, Build> e = next;
+							next = null;
+							return e;
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size()
 				{
-					clonedBuild = build.clone();
-					clonedBuilds.put(build, clonedBuild);
+					int size = 0;
+					for (Build build : changes.values())
+					{
+						if (build != null)
+							size++;
+					}
+					for (String name : snapshot.keySet())
+					{
+						if (!changes.containsKey(name))
+							size++;
+					}
+					return size;
 				}
-				clone.buildsByBranchName.put(branchName, clonedBuild);
+			};
+		}
+	}
+
+	/**
+	 * Read-only view of the branches kept in a store.
+	 */
+	private static final class StoreView extends AbstractMap<String, Build>
+	{
+		private final BuildData data;
+
+		StoreView(BuildData data)
+		{
+			this.data = data;
+		}
+
+		@Override
+		public Build get(Object key)
+		{
+			if (!(key instanceof String))
+				return null;
+			try
+			{
+				return data.getStore().getLastBuildOfBranch((String) key);
+			}
+			catch (IOException e)
+			{
+				throw new GitException("Unable to read the last build of " + key, e);
 			}
 		}
 
-		if (lastBuild != null)
+		@Override
+		public boolean containsKey(Object key)
 		{
-			clone.lastBuild = clonedBuilds.get(lastBuild);
-			if (clone.lastBuild == null)
+			return get(key) != null;
+		}
+
+		private Collection<String> names()
+		{
+			try
+			{
+				return data.getStore().getBranchNames();
+			}
+			catch (IOException e)
 			{
-				clone.lastBuild = lastBuild.clone();
-				clonedBuilds.put(lastBuild, clone.lastBuild);
+				throw new GitException("Unable to read the built branches", e);
 			}
 		}
 
-		return clone;
+		@Override
+		public Set<Map.Entry<String, Build>> entrySet()
+		{
+			final Collection<String> names = names();
+			return new AbstractSet<Map.Entry<String, Build>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, Build>> iterator()
+				{
+					final Iterator<String> it = names.iterator();
+					return new Iterator<Map.Entry<String, Build>>()
+					{
+						public boolean hasNext()
+						{
+							return it.hasNext();
+						}
+
+						public Map.Entry<String, Build> next()
+						{
+							String name = it.next();
+							return new BranchEntry(name, get(name));
+						}
+
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return names.size();
+				}
+			};
+		}
 	}
 
-	public Api getApi() {
-		return new Api(this);
+	private static final class BranchEntry implements Map.Entry<String, Build>
+	{
+		private final String name;
+		private final Build  build;
+
+		BranchEntry(String name, Build build)
+		{
+			this.name = name;
+			this.build = build;
+		}
+
+		public String getKey()
+		{
+			return name;
+		}
+
+		public Build getValue()
+		{
+			return build;
+		}
+
+		public Build setValue(Build value)
+		{
+			throw new UnsupportedOperationException();
+		}
 	}
+
+	/**
+	 * Deletes the copies of the snapshots that only deleted builds referred
+	 * to.
+	 */
+	@Extension
+	public static class SnapshotListener extends RunListener<AbstractBuild>
+	{
+		public SnapshotListener()
+		{
+			super(AbstractBuild.class);
+		}
+
+		@Override
+		public void onDeleted(AbstractBuild build)
+		{
+			AbstractProject<?, ?> project = build.getProject();
+			// concurrent builds do not refer to snapshots in build order
+			SnapshotReferences references = SnapshotReferences.forProject(project);
+			try
+			{
+				references.remove(build.getNumber());
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Failed to record the deletion of " + build, e);
+			}
+			pruneSnapshots(project.getRootDir(), references.getOldest());
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(BuildData.class.getName());
 }
@@ -0,0 +1,67 @@
+package hudson.plugins.git.util;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * Storage for the build history of a job: the last build of each branch,
+ * the builds of each revision, and the last build.
+ * <p>
+ * A job whose history is kept in a store records none of it in its
+ * {@link BuildData}, which becomes a facade to the store. The store lives
+ * on the master; workspaces on other nodes reach it through a proxy, so
+ * every method may fail with an {@link IOException}.
+ *
+ * @see BuildHistoryStoreFactory
+ */
+public interface BuildHistoryStore
+{
+    /**
+     * The last build recorded, or null.
+     */
+    Build getLastBuild() throws IOException;
+
+    /**
+     * The last build of a branch, or null.
+     */
+    Build getLastBuildOfBranch(String branch) throws IOException;
+
+    /**
+     * The last build of a revision, whichever branches it was built for,
+     * or null if it was never built.
+     */
+    Build getBuildOfSha1(ObjectId sha1) throws IOException;
+
+    /**
+     * The names of the branches that have a last build.
+     */
+    Collection<String> getBranchNames() throws IOException;
+
+    /**
+     * A number that changes whenever a build is recorded or a branch is
+     * forgotten, so that what is worked out from the branches can be kept
+     * until then.
+     */
+    long getModificationCount() throws IOException;
+
+    /**
+     * Record a build as the last build, the last build of each of the
+     * branches of its revision, and a build of its revision. Builds running
+     * concurrently may finish in any order: a later build already recorded
+     * for any of these stays.
+     */
+    void saveBuild(Build build) throws IOException;
+
+    /**
+     * Forget the last build of a branch.
+     */
+    void removeBranch(String branch) throws IOException;
+
+    /**
+     * Release the store, once its job is deleted or reloaded. The job opens
+     * the store again the next time it is needed.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.git.util;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the {@link BuildHistoryStore} of a job. The plugin ships with
+ * {@link FileBuildHistoryStore}; another implementation registered as an
+ * extension takes precedence over it.
+ */
+public abstract class BuildHistoryStoreFactory implements ExtensionPoint
+{
+    private static final Map<File, BuildHistoryStore> STORES = new HashMap<File, BuildHistoryStore>();
+
+    /**
+     * Open the store of a job. Called at most once per job directory.
+     */
+    public abstract BuildHistoryStore open(AbstractProject<?, ?> project) throws IOException;
+
+    /**
+     * Get the store of a job. There is a single instance per job in a JVM.
+     */
+    public static BuildHistoryStore forProject(AbstractProject<?, ?> project) throws IOException
+    {
+        File dir = project.getRootDir();
+        synchronized (STORES)
+        {
+            BuildHistoryStore store = STORES.get(dir);
+            if (store == null)
+            {
+                BuildHistoryStoreFactory factory = null;
+                for (BuildHistoryStoreFactory f : Hudson.getInstance().getExtensionList(BuildHistoryStoreFactory.class))
+                {
+                    if (factory == null || factory instanceof FileBuildHistoryStore.FactoryImpl)
+                        factory = f;
+                }
+                if (factory == null)
+                    factory = new FileBuildHistoryStore.FactoryImpl();
+                store = factory.open(project);
+                STORES.put(dir, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Close the stores of the job directories matching a filter, so that
+     * they are opened again, from the current directory of their job, when
+     * next needed.
+     */
+    private static void close(Filter filter)
+    {
+        List<BuildHistoryStore> closing = new ArrayList<BuildHistoryStore>();
+        synchronized (STORES)
+        {
+            for (Iterator<Map.Entry<File, BuildHistoryStore>> i = STORES.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry<File, BuildHistoryStore> e = i.next();
+                if (filter.matches(e.getKey()))
+                {
+                    closing.add(e.getValue());
+                    i.remove();
+                }
+            }
+        }
+        for (BuildHistoryStore store : closing)
+        {
+            try
+            {
+                store.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to close a build history store", e);
+            }
+        }
+    }
+
+    private interface Filter
+    {
+        boolean matches(File dir);
+    }
+
+    /**
+     * Closes the store of a job when it is deleted or renamed, as its
+     * directory goes away, and all stores when the jobs are reloaded.
+     */
+    @Extension
+    public static class ListenerImpl extends ItemListener
+    {
+        @Override
+        public void onDeleted(Item item)
+        {
+            final File dir = item.getRootDir();
+            close(new Filter()
+            {
+                public boolean matches(File d)
+                {
+                    return d.equals(dir);
+                }
+            });
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName)
+        {
+            close(new Filter()
+            {
+                public boolean matches(File d)
+                {
+                    return !d.exists();
+                }
+            });
+        }
+
+        @Override
+        public void onLoaded()
+        {
+            close(new Filter()
+            {
+                public boolean matches(File d)
+                {
+                    return true;
+                }
+            });
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BuildHistoryStoreFactory.class.getName());
+}
@@ -0,0 +1,383 @@
+package hudson.plugins.git.util;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * A {@link BuildHistoryStore} kept in a single append-only file in the job
+ * directory. Every recorded build is appended once, and builds are read
+ * back from the file at their offset. The last build of each branch is
+ * indexed in memory when the file is opened, the last build of each
+ * revision in a {@link RevisionIndex} next to it.
+ * <p>
+ * Each record is a type byte and a length, followed by either an encoded
+ * {@link Build} or the name of a branch to forget. A record cut short by a
+ * crash is dropped when the file is opened.
+ */
+public class FileBuildHistoryStore implements BuildHistoryStore
+{
+    private static final int  VERSION       = 1;
+    private static final byte BUILD         = 1;
+    private static final byte REMOVE_BRANCH = 2;
+
+    private static final int  HEADER_SIZE   = 4;
+    private static final int  RECORD_HEADER_SIZE = 5;
+
+    private final File             file;
+    private final RandomAccessFile raf;
+    private final FileChannel      channel;
+    private final RevisionIndex    revisions;
+
+    private long                   size;
+    private long                   modificationCount;
+
+    /**
+     * The last build of each branch, by name, and the last build.
+     */
+    private final SortedMap<String, Last> branches = new TreeMap<String, Last>();
+    private Last                          lastBuild;
+
+    /**
+     * The offset and number of a build.
+     */
+    private static final class Last
+    {
+        final long offset;
+        final int  number;
+
+        Last(long offset, int number)
+        {
+            this.offset = offset;
+            this.number = number;
+        }
+    }
+
+    /**
+     * Open the history kept in a file, with its revision index in the file
+     * of the same name ending in <tt>.idx</tt>.
+     */
+    public FileBuildHistoryStore(File file) throws IOException
+    {
+        this.file = file;
+        boolean created = !file.exists();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try
+        {
+            if (created || raf.length() < HEADER_SIZE)
+            {
+                raf.setLength(0);
+                raf.writeInt(VERSION);
+            }
+            else
+            {
+                raf.seek(0);
+                if (raf.readInt() != VERSION)
+                    throw new IOException(file + " was written by another version");
+            }
+            size = raf.length();
+            revisions = new RevisionIndex(getIndexFile(file));
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+        try
+        {
+            load();
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private static File getIndexFile(File file)
+    {
+        String name = file.getName();
+        if (name.endsWith(".log"))
+            name = name.substring(0, name.length() - 4);
+        return new File(file.getParentFile(), name + ".idx");
+    }
+
+    private void load() throws IOException
+    {
+        // a history that was cut short is indexed again
+        if (revisions.getCovered() > size)
+            revisions.clear();
+        long covered = revisions.getCovered();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long offset = HEADER_SIZE;
+        try
+        {
+            in.skipBytes(HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= size)
+            {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || offset + RECORD_HEADER_SIZE + length > size)
+                    break;
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                if (type == BUILD)
+                    index(decodeBuild(decode(bytes)), offset, offset >= covered);
+                else if (type == REMOVE_BRANCH)
+                    branches.remove(decode(bytes).readUTF());
+                else
+                    break;
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        if (offset != size)
+        {
+            LOGGER.warning("Truncating damaged build history " + file + " to " + offset + " bytes");
+            raf.setLength(offset);
+            size = offset;
+        }
+        if (revisions.getCovered() != size)
+            revisions.setCovered(size);
+    }
+
+    private void index(Build build, long offset, boolean indexRevision) throws IOException
+    {
+        int number = build.hudsonBuildNumber;
+        Last last = new Last(offset, number);
+        for (Branch branch : build.revision.getBranches())
+        {
+            Last previous = branches.get(branch.getName());
+            if (previous == null || number >= previous.number)
+                branches.put(branch.getName(), last);
+        }
+        if (indexRevision)
+            revisions.put(build.revision.getSha1(), offset, number);
+        if (lastBuild == null || number >= lastBuild.number)
+            lastBuild = last;
+        modificationCount++;
+    }
+
+    private Build readBuild(long offset) throws IOException
+    {
+        ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+        ByteBuffer bytes = read(offset + RECORD_HEADER_SIZE, header.getInt(1));
+        return decodeBuild(decode(bytes.array()));
+    }
+
+    private Build readBuild(Last last) throws IOException
+    {
+        return last == null ? null : readBuild(last.offset);
+    }
+
+    private ByteBuffer read(long pos, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new IOException("Unexpected end of " + file);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private long append(byte type, byte[] bytes) throws IOException
+    {
+        long offset = size;
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length);
+        buf.put(type);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+            channel.write(buf, offset + buf.position());
+        }
+        size = offset + buf.capacity();
+        return offset;
+    }
+
+    public synchronized Build getLastBuild() throws IOException
+    {
+        return readBuild(lastBuild);
+    }
+
+    public synchronized Build getLastBuildOfBranch(String branch) throws IOException
+    {
+        return readBuild(branches.get(branch));
+    }
+
+    public synchronized Build getBuildOfSha1(ObjectId sha1) throws IOException
+    {
+        long offset = revisions.get(sha1);
+        return offset < 0 ? null : readBuild(offset);
+    }
+
+    /**
+     * The names of the branches that have a last build, sorted.
+     */
+    public synchronized Collection<String> getBranchNames()
+    {
+        return new ArrayList<String>(branches.keySet());
+    }
+
+    public synchronized long getModificationCount()
+    {
+        return modificationCount;
+    }
+
+    public synchronized void saveBuild(Build build) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encodeBuild(new DataOutputStream(bytes), build);
+        index(build, append(BUILD, bytes.toByteArray()), true);
+        revisions.setCovered(size);
+    }
+
+    public synchronized void removeBranch(String branch) throws IOException
+    {
+        if (!branches.containsKey(branch))
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(branch);
+        append(REMOVE_BRANCH, bytes.toByteArray());
+        revisions.setCovered(size);
+        branches.remove(branch);
+        modificationCount++;
+    }
+
+    /**
+     * Number of revisions built.
+     */
+    public synchronized int getRevisionCount()
+    {
+        return revisions.size();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            revisions.close();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static DataInputStream decode(byte[] bytes)
+    {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void encodeBuild(DataOutputStream out, Build build) throws IOException
+    {
+        out.writeInt(build.hudsonBuildNumber);
+        out.writeUTF(build.hudsonBuildResult == null ? "" : build.hudsonBuildResult.toString());
+        out.writeLong(build.getTimestamp());
+        encodeRevision(out, build.revision);
+        out.writeBoolean(build.mergeRevision != null);
+        if (build.mergeRevision != null)
+            encodeRevision(out, build.mergeRevision);
+        out.flush();
+    }
+
+    private static Build decodeBuild(DataInputStream in) throws IOException
+    {
+        int number = in.readInt();
+        String result = in.readUTF();
+        long timestamp = in.readLong();
+        Build build = new Build(decodeRevision(in), number, result.length() == 0 ? null : Result.fromString(result));
+        build.setTimestamp(timestamp);
+        if (in.readBoolean())
+            build.mergeRevision = decodeRevision(in);
+        return build;
+    }
+
+    private static void encodeRevision(DataOutputStream out, Revision revision) throws IOException
+    {
+        encodeSha1(out, revision.getSha1());
+        out.writeInt(revision.getBranches().size());
+        for (Branch branch : revision.getBranches())
+        {
+            out.writeUTF(branch.getName());
+            encodeSha1(out, branch.getSHA1());
+        }
+    }
+
+    private static Revision decodeRevision(DataInputStream in) throws IOException
+    {
+        ObjectId sha1 = decodeSha1(in);
+        int count = in.readInt();
+        List<Branch> branches = new ArrayList<Branch>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String name = in.readUTF();
+            branches.add(new Branch(name, decodeSha1(in)));
+        }
+        return new Revision(sha1, branches);
+    }
+
+    private static void encodeSha1(DataOutputStream out, ObjectId sha1) throws IOException
+    {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        if (sha1 != null)
+            sha1.copyRawTo(raw, 0);
+        out.writeBoolean(sha1 != null);
+        out.write(raw);
+    }
+
+    private static ObjectId decodeSha1(DataInputStream in) throws IOException
+    {
+        boolean present = in.readBoolean();
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(raw);
+        return present ? ObjectId.fromRaw(raw) : null;
+    }
+
+    /**
+     * Keeps the history of a job in <tt>git-history.log</tt> in the job
+     * directory, and its revision index in <tt>git-history.idx</tt>.
+     */
+    @Extension
+    public static class FactoryImpl extends BuildHistoryStoreFactory
+    {
+        @Override
+        public BuildHistoryStore open(AbstractProject<?, ?> project) throws IOException
+        {
+            return new FileBuildHistoryStore(new File(project.getRootDir(), "git-history.log"));
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(FileBuildHistoryStore.class.getName());
+}
@@ -0,0 +1,276 @@
+package hudson.plugins.git.util;
+
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * The batch of commits the Gerrit strategy is verifying, when it builds
+ * them in batches rather than one at a time.
+ * <p>
+ * The commits after the last verified one are taken a batch at a time,
+ * oldest first, and the newest of the batch is built. If it passes, the
+ * whole batch is verified. If it fails, the batch is bisected: the commit
+ * halfway between the newest known to pass and the oldest known to fail is
+ * built next, until the failing commit next to a passing one is found. The
+ * commits between the last one verified and a commit that passes are
+ * recorded by commit as built by the build of that commit, and the newest
+ * commit known to pass is the last build of the job, which the changelog of
+ * the next build starts from.
+ * <p>
+ * The state lives on the master, in the job directory, as the result of a
+ * build is only known once it has completed: each build fills in the
+ * result of the build before it.
+ */
+public class GerritBatch
+{
+    private static final Map<File, GerritBatch> BATCHES = new HashMap<File, GerritBatch>();
+
+    private transient File dir;
+
+    /**
+     * The newest commit verified, or null to start after the last built one.
+     */
+    private ObjectId verified;
+
+    /**
+     * The commits of the batch, oldest first, or none between batches.
+     */
+    private List<ObjectId> commits = new ArrayList<ObjectId>();
+
+    /**
+     * The index of the newest commit of the batch known to pass, -1 if none.
+     */
+    private int good = -1;
+
+    /**
+     * The index of the oldest commit of the batch known to fail, -1 if none.
+     */
+    private int bad = -1;
+
+    /**
+     * The commit being built, and the number of its build, 0 if none.
+     */
+    private Revision pending;
+    private int      pendingBuild;
+
+    /**
+     * The newest commit known to pass, and the number of the build that
+     * passed it, null and 0 until a commit of a batch passes.
+     */
+    private ObjectId passed;
+    private int      passedBuild;
+
+    private static XmlFile getFile(File dir)
+    {
+        return new XmlFile(Run.XSTREAM, new File(dir, "git-gerrit-batch.xml"));
+    }
+
+    /**
+     * Get the batch of a job. There is a single instance per job in a JVM.
+     */
+    public static GerritBatch forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (BATCHES)
+        {
+            GerritBatch batch = BATCHES.get(dir);
+            if (batch == null)
+            {
+                XmlFile file = getFile(dir);
+                if (file.exists())
+                {
+                    try
+                    {
+                        batch = (GerritBatch) file.read();
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.log(Level.WARNING, "Failed to read " + file + ", starting a new batch", e);
+                    }
+                }
+                if (batch == null)
+                    batch = new GerritBatch();
+                batch.dir = dir;
+                BATCHES.put(dir, batch);
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * The newest commit verified. Before the first batch, that is the last
+     * commit built one at a time, which the first batch starts after.
+     */
+    public synchronized ObjectId getVerified(Revision lastBuilt)
+    {
+        if (verified == null && lastBuilt != null)
+            verified = lastBuilt.getSha1();
+        return verified;
+    }
+
+    /**
+     * The build of the newest commit known to pass, recorded under the
+     * {@link GerritBuildChooser#TIMEBASED} branch, or null if none has.
+     */
+    public synchronized Build getPassed()
+    {
+        if (passed == null)
+            return null;
+        Revision revision = new Revision(passed);
+        revision.getBranches().add(new Branch(GerritBuildChooser.TIMEBASED, passed));
+        return new Build(revision, passedBuild, Result.SUCCESS);
+    }
+
+    /**
+     * Take in the result of the build of the pending commit, once it has
+     * completed.
+     *
+     * @return the commits the pending commit verified if it passed, each
+     *         recorded as built by its build; empty while it runs
+     */
+    public synchronized List<Build> update(AbstractProject<?, ?> project, TaskListener listener) throws IOException
+    {
+        if (pending == null)
+            return new ArrayList<Build>();
+        AbstractBuild<?, ?> build = project.getBuildByNumber(pendingBuild);
+        if (build != null && build.isBuilding())
+            return new ArrayList<Build>();
+        return update(build == null ? null : build.getResult(), listener);
+    }
+
+    synchronized List<Build> update(Result result, TaskListener listener) throws IOException
+    {
+        List<Build> builds = new ArrayList<Build>();
+        // an aborted build says nothing about the commit, which is built again
+        int index = commits.indexOf(pending.getSha1());
+        if (result != null && !result.isWorseThan(Result.FAILURE) && index >= 0)
+        {
+            listener.getLogger().println("Build #" + pendingBuild + " of " + pending.getSha1String() + ": " + result);
+            if (result.isBetterOrEqualTo(Result.SUCCESS))
+            {
+                for (int i = good + 1; i < index; i++)
+                {
+                    builds.add(new Build(new Revision(commits.get(i)), pendingBuild, result));
+                }
+                if (index > good)
+                {
+                    good = index;
+                    passed = commits.get(index);
+                    passedBuild = pendingBuild;
+                }
+            }
+            else if (bad < 0 || index < bad)
+            {
+                bad = index;
+            }
+        }
+        pending = null;
+        pendingBuild = 0;
+        save();
+        return builds;
+    }
+
+    /**
+     * Pick the commit to build next.
+     *
+     * @param candidates the commits after the last one verified, oldest first
+     * @param batchSize the number of commits in a batch
+     * @return the commit, or null if all are verified or another build is
+     *         verifying the batch
+     */
+    public synchronized Revision choose(List<Revision> candidates, int batchSize, int buildNumber, TaskListener listener) throws IOException
+    {
+        if (pending != null)
+        {
+            // a concurrent build: leave the batch to the build testing it
+            listener.getLogger().println("Build #" + pendingBuild + " is verifying the batch");
+            return null;
+        }
+
+        List<ObjectId> shas = new ArrayList<ObjectId>();
+        for (Revision candidate : candidates)
+        {
+            shas.add(candidate.getSha1());
+        }
+        if (!commits.isEmpty() && !shas.subList(0, Math.min(shas.size(), commits.size())).equals(commits))
+        {
+            listener.getLogger().println("The commits of the batch changed, starting a new batch");
+            reset(verified);
+        }
+
+        while (true)
+        {
+            if (commits.isEmpty())
+            {
+                int start = verified == null ? 0 : shas.indexOf(verified) + 1;
+                if (start >= shas.size())
+                {
+                    save();
+                    return null;
+                }
+                commits = new ArrayList<ObjectId>(shas.subList(start, Math.min(shas.size(), start + batchSize)));
+                listener.getLogger().println("Verifying a batch of " + commits.size() + " commits");
+            }
+
+            ObjectId next;
+            if (bad < 0 && good == commits.size() - 1)
+            {
+                listener.getLogger().println("All " + commits.size() + " commits of the batch passed");
+                reset(commits.get(good));
+                continue;
+            }
+            else if (bad < 0)
+            {
+                next = commits.get(commits.size() - 1);
+            }
+            else if (bad == good + 1)
+            {
+                listener.getLogger().println("Commit " + commits.get(bad).name() + " broke the build");
+                reset(commits.get(bad));
+                continue;
+            }
+            else
+            {
+                next = commits.get((good + bad) / 2);
+                listener.getLogger().println("Bisecting commits " + (good + 2) + " to " + (bad + 1) + " of the batch");
+            }
+
+            pending = candidates.get(shas.indexOf(next));
+            pendingBuild = buildNumber;
+            save();
+            return pending;
+        }
+    }
+
+    private void reset(ObjectId newVerified)
+    {
+        verified = newVerified;
+        commits = new ArrayList<ObjectId>();
+        good = bad = -1;
+    }
+
+    private void save() throws IOException
+    {
+        if (dir != null)
+            getFile(dir).write(this);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GerritBatch.class.getName());
+}
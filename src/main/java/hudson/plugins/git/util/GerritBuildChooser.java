@@ -13,6 +13,19 @@ import java.util.logging.Logger;
 
 public class GerritBuildChooser implements IBuildChooser {
 
+    /**
+     * The branch the commits are recorded under when built one after the
+     * other. When built in parallel, the newest commit that all the commits
+     * up to have been built.
+     */
+    public static final String TIMEBASED = "timebased";
+
+    /**
+     * The prefix of the branch each commit built in parallel is recorded
+     * under, followed by its SHA1.
+     */
+    public static final String CHANGE_PREFIX = "change/";
+
     private final String separator = "#";
     private final IGitAPI               git;
     private final GitUtils              utils;
@@ -75,9 +88,191 @@ public class GerritBuildChooser implements IBuildChooser {
 
     }
 
+    /**
+     * The commits after a commit, in the order they were committed, oldest
+     * first. If the commit is no longer in the history, as after a forced
+     * push, only the newest commit is returned, to start again from, rather
+     * than the whole history.
+     *
+     * @param since the commit, or null for all commits
+     */
+    public List<Revision> getCommitsSince(ObjectId since, String singleBranch)
+            throws GitException, IOException {
+        String result = git.getAllLogEntries(singleBranch);
+        ArrayList<Revision> revs = new ArrayList<Revision>();
+        boolean found = false;
+        for (TimedCommit tc : sortRevList(result)) {
+            if (since != null && tc.commit.equals(since)) {
+                found = true;
+                break;
+            }
+            addToRevs(revs, tc);
+        }
+        if (since != null && !found && revs.size() > 1) {
+            utils.listener.getLogger().println("Commit " + since.name() + " is no longer in the history, starting again from "
+                    + revs.get(0).getSha1String());
+            return Collections.singletonList(revs.get(0));
+        }
+        Collections.reverse(revs);
+        return revs;
+    }
+
+    /**
+     * The commits to hand out to builds running in parallel, oldest first:
+     * the commits not built since the last commit that all before it were
+     * built, that are not being built, and that are neither an ancestor nor a
+     * descendant of a commit being built or of an earlier one of them.
+     * <p>
+     * A build not triggered by polling builds the oldest of the commits
+     * left if none is independent, or the last built commit if none is left.
+     *
+     * @param reserved the commits being built
+     */
+    public List<Revision> getIndependentCandidates(boolean isPollCall, String singleBranch, Set<ObjectId> reserved)
+            throws GitException, IOException {
+        Build watermark = data.getLastBuildOfBranch(TIMEBASED);
+        Set<ObjectId> built = getBuiltCommits();
+        List<Revision> unbuilt = new ArrayList<Revision>();
+        for (Revision r : getCommitsSince(watermark == null ? null : watermark.getSHA1(), singleBranch)) {
+            if (!built.contains(r.getSha1()) && !reserved.contains(r.getSha1())) {
+                unbuilt.add(change(r.getSha1()));
+            }
+        }
+
+        List<ObjectId> busy = new ArrayList<ObjectId>(reserved);
+        List<ObjectId> commits = new ArrayList<ObjectId>(busy);
+        for (Revision r : unbuilt) {
+            commits.add(r.getSha1());
+        }
+        Map<ObjectId, Set<ObjectId>> related = getRelated(commits);
+        List<Revision> independent = new ArrayList<Revision>();
+        for (Revision r : unbuilt) {
+            if (Collections.disjoint(related.get(r.getSha1()), busy)) {
+                independent.add(r);
+                busy.add(r.getSha1());
+            }
+        }
+        if (!independent.isEmpty() || isPollCall) {
+            return independent;
+        }
+
+        if (!unbuilt.isEmpty()) {
+            utils.listener.getLogger().println("No change independent of those being built, building " + unbuilt.get(0).getSha1String());
+            return Collections.singletonList(unbuilt.get(0));
+        }
+        Revision last = data.getLastBuiltRevision();
+        return last == null ? Collections.<Revision>emptyList() : Collections.singletonList(last);
+    }
+
+    /**
+     * Move the commit all the commits up to have been built, counting the
+     * commit a build is about to record, forward as far as it goes, and
+     * forget the changes it moved past.
+     */
+    public void advanceWatermark(String singleBranch, ObjectId building, int buildNumber)
+            throws GitException, IOException {
+        Build watermark = data.getLastBuildOfBranch(TIMEBASED);
+        Set<ObjectId> built = getBuiltCommits();
+        built.add(building);
+        List<Revision> commits = getCommitsSince(watermark == null ? null : watermark.getSHA1(), singleBranch);
+        int count = 0;
+        while (count < commits.size() && built.contains(commits.get(count).getSha1())) {
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        ObjectId newest = commits.get(count - 1).getSha1();
+        Revision rev = new Revision(newest);
+        rev.getBranches().add(new Branch(TIMEBASED, newest));
+        utils.saveBuild(data, new Build(rev, buildNumber, null), gitSCM);
+
+        Set<String> above = new HashSet<String>();
+        for (Revision r : commits.subList(count, commits.size())) {
+            above.add(CHANGE_PREFIX + r.getSha1().name());
+        }
+        List<String> passed = new ArrayList<String>();
+        for (String name : data.getBuildsByBranchName().keySet()) {
+            if (name.startsWith(CHANGE_PREFIX) && !above.contains(name)) {
+                passed.add(name);
+            }
+        }
+        data.removeBranches(passed);
+    }
+
+    private Set<ObjectId> getBuiltCommits() {
+        Set<ObjectId> built = new HashSet<ObjectId>();
+        for (Build b : data.getBuildsByBranchName().values()) {
+            built.add(b.getSHA1());
+        }
+        return built;
+    }
+
+    /**
+     * The commits among some that each one is an ancestor or a descendant
+     * of. Their history is listed once, children first, and the commits
+     * each commit is an ancestor of are carried down to its parents, rather
+     * than finding a merge base for each pair.
+     */
+    private Map<ObjectId, Set<ObjectId>> getRelated(Collection<ObjectId> commits) {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        Map<ObjectId, Integer> positions = new HashMap<ObjectId, Integer>();
+        Map<ObjectId, Set<ObjectId>> related = new HashMap<ObjectId, Set<ObjectId>>();
+        for (ObjectId commit : commits) {
+            if (!positions.containsKey(commit)) {
+                positions.put(commit, ids.size());
+                ids.add(commit);
+                related.put(commit, new HashSet<ObjectId>());
+            }
+        }
+        Map<ObjectId, List<ObjectId>> parents;
+        try {
+            parents = git.revListParents(ids);
+        } catch (GitException e) {
+            utils.listener.getLogger().println("Unable to list the history of the changes, taking them as independent: " + e.getMessage());
+            return related;
+        }
+
+        // the commits among them that each pending commit is an ancestor of
+        Map<ObjectId, BitSet> descendants = new HashMap<ObjectId, BitSet>();
+        for (Map.Entry<ObjectId, List<ObjectId>> e : parents.entrySet()) {
+            ObjectId commit = e.getKey();
+            BitSet d = descendants.remove(commit);
+            Integer position = positions.get(commit);
+            if (position != null) {
+                if (d == null) {
+                    d = new BitSet();
+                }
+                for (int i = d.nextSetBit(0); i >= 0; i = d.nextSetBit(i + 1)) {
+                    related.get(commit).add(ids.get(i));
+                    related.get(ids.get(i)).add(commit);
+                }
+                d.set(position);
+            }
+            if (d == null) {
+                continue;
+            }
+            for (ObjectId parent : e.getValue()) {
+                BitSet p = descendants.get(parent);
+                if (p == null) {
+                    descendants.put(parent, (BitSet) d.clone());
+                } else {
+                    p.or(d);
+                }
+            }
+        }
+        return related;
+    }
+
+    private static Revision change(ObjectId sha1) {
+        Revision rev = new Revision(sha1);
+        rev.getBranches().add(new Branch(CHANGE_PREFIX + sha1.name(), sha1));
+        return rev;
+    }
+
     private void addToRevs(ArrayList<Revision> revs, TimedCommit tc) {
         Revision rev = new Revision(tc.commit);
-        rev.getBranches().add(new Branch("timebased", rev.getSha1()));
+        rev.getBranches().add(new Branch(TIMEBASED, rev.getSha1()));
         revs.add(rev);
     }
 
@@ -133,7 +328,7 @@ public class GerritBuildChooser implements IBuildChooser {
     public Build revisionBuilt(Revision revision, int buildNumber, Result result )
     {
         Build build = new Build(revision, buildNumber, result);
-        data.saveBuild(build);
+        utils.saveBuild(data, build, gitSCM);
         return build;
     }
 
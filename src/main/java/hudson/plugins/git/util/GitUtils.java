@@ -3,11 +3,14 @@ package hudson.plugins.git.util;
 import hudson.model.TaskListener;
 import hudson.plugins.git.Branch;
 import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
 import hudson.plugins.git.IGitAPI;
 import hudson.plugins.git.IndexEntry;
 import hudson.plugins.git.Revision;
+import hudson.plugins.git.opt.BuildDataOptions;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,6 +20,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.transport.RemoteConfig;
 
 public class GitUtils
 {
@@ -31,7 +35,16 @@ public class GitUtils
 
   public List<IndexEntry> getSubmodules(String treeIsh)
   {
-    List<IndexEntry> submodules = git.lsTree(treeIsh);
+    return getSubmodules(treeIsh, false);
+  }
+
+  /**
+   * The submodules of a tree, including those in its subdirectories if
+   * recursive.
+   */
+  public List<IndexEntry> getSubmodules(String treeIsh, boolean recursive)
+  {
+    List<IndexEntry> submodules = git.lsTree(treeIsh, recursive);
 
     // Remove anything that isn't a submodule
     for (Iterator<IndexEntry> it = submodules.iterator(); it.hasNext();)
@@ -100,6 +113,53 @@ public class GitUtils
 	  return null;
   }
 
+  /**
+   * Save a build in the build data, pruning the stale branches as configured
+   * for the job.
+   * @param data
+   * @param build
+   * @param gitSCM
+   */
+  public void saveBuild(BuildData data, Build build, GitSCM gitSCM)
+  {
+    BuildDataOptions options = gitSCM.getBuildDataOptions();
+    if (!options.doPrune())
+    {
+      data.saveBuild(build);
+      return;
+    }
+
+    List<String> remoteBranches = null;
+    if (options.isPruneDeletedBranches())
+    {
+      try
+      {
+        // the fetch pruned the branches deleted upstream
+        remoteBranches = new ArrayList<String>();
+        for (Branch b : git.getRemoteBranches())
+        {
+          remoteBranches.add(b.getName());
+        }
+      }
+      catch (Exception e)
+      {
+        // without the remote branches, only prune by age
+        listener.getLogger().println("Unable to list the remote branches: " + e.getMessage());
+        remoteBranches = null;
+      }
+    }
+
+    List<String> remotes = new ArrayList<String>();
+    for (RemoteConfig remote : gitSCM.getRepositories())
+    {
+      remotes.add(remote.getName());
+    }
+
+    data.saveBuild(build, remoteBranches, remotes, options.getPruneAfterDays() * 24L * 60 * 60 * 1000);
+    if (data.getPrunedBranches() > 0)
+      listener.getLogger().println("Pruned " + data.getPrunedBranches() + " stale branches from the build data");
+  }
+
    /**
      * Return a list of 'tip' branches (I.E. branches that aren't included entirely within another branch).
      *
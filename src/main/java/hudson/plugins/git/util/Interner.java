@@ -0,0 +1,84 @@
+package hudson.plugins.git.util;
+
+import hudson.plugins.git.Branch;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * Canonical instances of the values repeated across the build history of a
+ * job: branch names and SHA1s, which the build data of every build recorded
+ * before snapshots were introduced holds a copy of. The builds themselves
+ * are not shared, as their fields can still be changed once recorded.
+ * <p>
+ * Values are interned as build records are loaded, and are only held
+ * weakly, so they are dropped with the last build that refers to them.
+ */
+public final class Interner
+{
+    private static final Map<String, WeakReference<String>>     NAMES  = new WeakHashMap<String, WeakReference<String>>();
+    private static final Map<ObjectId, WeakReference<ObjectId>> IDS    = new WeakHashMap<ObjectId, WeakReference<ObjectId>>();
+
+    private Interner()
+    {
+    }
+
+    public static String name(String name)
+    {
+        if (name == null)
+            return null;
+        synchronized (NAMES)
+        {
+            WeakReference<String> ref = NAMES.get(name);
+            String canonical = ref == null ? null : ref.get();
+            if (canonical == null)
+            {
+                canonical = name;
+                NAMES.put(canonical, new WeakReference<String>(canonical));
+            }
+            return canonical;
+        }
+    }
+
+    public static ObjectId id(ObjectId id)
+    {
+        if (id == null)
+            return null;
+        synchronized (IDS)
+        {
+            WeakReference<ObjectId> ref = IDS.get(id);
+            ObjectId canonical = ref == null ? null : ref.get();
+            if (canonical == null)
+            {
+                canonical = id;
+                IDS.put(canonical, new WeakReference<ObjectId>(canonical));
+            }
+            return canonical;
+        }
+    }
+
+    /**
+     * An immutable copy of branches, no larger than needed. A revision
+     * recorded by a build almost always has a single branch.
+     */
+    public static Collection<Branch> branches(Collection<Branch> branches)
+    {
+        if (branches == null)
+            return null;
+        switch (branches.size())
+        {
+        case 0:
+            return Collections.emptyList();
+        case 1:
+            return Collections.singletonList(branches.iterator().next());
+        default:
+            return Collections.unmodifiableList(Arrays.asList(branches.toArray(new Branch[branches.size()])));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.git.util;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.IGitAPI;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.transport.RemoteConfig;
+
+/**
+ * The candidate revisions found by polling, and the references of the
+ * remote repositories they were found in, handed to the build polling
+ * triggered so that it does not fetch and pick the candidates again.
+ * <p>
+ * The build reuses the candidates only if it builds the same single branch
+ * as the poll, the remote repositories still have the same references, the
+ * candidates are in its workspace, and they have not been built since. A build scheduled by polling carries the
+ * result as an action; otherwise the result is left for the next build of
+ * the job.
+ */
+public class PollResult implements Action, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<File, PollResult> PENDING = new HashMap<File, PollResult>();
+
+    private final List<Revision>                     candidates;
+
+    /**
+     * References of each remote repository by URL, when polled.
+     */
+    private final Map<String, Map<String, ObjectId>> references;
+
+    /**
+     * The heads of the remote branches in the workspace after the poll, by
+     * name, for the revision queue. Not handed to the build.
+     */
+    private final Map<String, ObjectId>              heads;
+
+    /**
+     * The single branch the poll looked for, or null if it was not a single
+     * branch.
+     */
+    private final String                             singleBranch;
+
+    public PollResult(Collection<Revision> candidates, Map<String, Map<String, ObjectId>> references, String singleBranch)
+    {
+        this(candidates, references, null, singleBranch);
+    }
+
+    public PollResult(Collection<Revision> candidates, Map<String, Map<String, ObjectId>> references, Map<String, ObjectId> heads,
+            String singleBranch)
+    {
+        this.candidates = new ArrayList<Revision>(candidates);
+        this.references = references;
+        this.heads = heads;
+        this.singleBranch = singleBranch;
+    }
+
+    public List<Revision> getCandidates()
+    {
+        return candidates;
+    }
+
+    public Map<String, ObjectId> getHeads()
+    {
+        return heads;
+    }
+
+    /**
+     * The same references, for other candidates.
+     */
+    public PollResult forCandidates(Collection<Revision> candidates)
+    {
+        return new PollResult(candidates, references, singleBranch);
+    }
+
+    /**
+     * List the references of the remote repositories.
+     */
+    public static Map<String, Map<String, ObjectId>> getReferences(IGitAPI git, Collection<RemoteConfig> remotes) throws GitException
+    {
+        Map<String, Map<String, ObjectId>> references = new LinkedHashMap<String, Map<String, ObjectId>>();
+        for (RemoteConfig remote : remotes)
+        {
+            String url = remote.getURIs().get(0).toString();
+            references.put(url, git.getRemoteReferences(url));
+        }
+        return references;
+    }
+
+    /**
+     * The candidates to build in a workspace, if they can be reused.
+     *
+     * @param singleBranch the single branch the build builds, or null
+     * @return the candidates not built since, or null if the build builds
+     *         another branch, the remote repositories changed, a candidate
+     *         is missing from the workspace, or all were built
+     */
+    public List<Revision> reuse(IGitAPI git, Collection<RemoteConfig> remotes, BuildData buildData, String singleBranch,
+            TaskListener listener)
+    {
+        try
+        {
+            if (references == null)
+                return null;
+            if (singleBranch == null ? this.singleBranch != null : !singleBranch.equals(this.singleBranch))
+            {
+                listener.getLogger().println("The build is not for the branch that was polled");
+                return null;
+            }
+            if (!references.equals(getReferences(git, remotes)))
+            {
+                listener.getLogger().println("The remote repositories changed since they were polled");
+                return null;
+            }
+            List<Revision> unbuilt = new ArrayList<Revision>();
+            for (Revision candidate : candidates)
+            {
+                if (!git.isCommitInRepo(candidate.getSha1()))
+                    return null;
+                if (buildData == null || !buildData.hasBeenBuilt(candidate.getSha1()))
+                    unbuilt.add(candidate);
+            }
+            return unbuilt.isEmpty() ? null : unbuilt;
+        }
+        catch (GitException e)
+        {
+            listener.getLogger().println("Unable to check the remote repositories: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Leave the result for the next build of a job.
+     */
+    public static void offer(AbstractProject<?, ?> project, PollResult result)
+    {
+        synchronized (PENDING)
+        {
+            PENDING.put(project.getRootDir(), result);
+        }
+    }
+
+    /**
+     * Take the result left for the next build of a job.
+     *
+     * @return the result, or null if there is none
+     */
+    public static PollResult take(AbstractProject<?, ?> project)
+    {
+        synchronized (PENDING)
+        {
+            return PENDING.remove(project.getRootDir());
+        }
+    }
+
+    public String getIconFileName()
+    {
+        return null;
+    }
+
+    public String getDisplayName()
+    {
+        return null;
+    }
+
+    public String getUrlName()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,146 @@
+package hudson.plugins.git.util;
+
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The build data last recorded by a job, kept in the job directory so that
+ * polling does not need to load build records to find it.
+ * <p>
+ * The state is written every time a build records its {@link BuildData},
+ * replacing the file atomically, and is cached in memory once read.
+ */
+public class PollState
+{
+    private static final Map<File, PollState> STATES = new HashMap<File, PollState>();
+
+    /**
+     * Marks a job whose state has been looked for but not found.
+     */
+    private static final PollState NONE = new PollState(0, null, null);
+
+    private final int       buildNumber;
+    private final BuildData buildData;
+    private final String    singleBranch;
+
+    public PollState(int buildNumber, BuildData buildData, String singleBranch)
+    {
+        this.buildNumber = buildNumber;
+        this.buildData = buildData;
+        this.singleBranch = singleBranch;
+    }
+
+    /**
+     * The number of the build that recorded the data.
+     */
+    public int getBuildNumber()
+    {
+        return buildNumber;
+    }
+
+    public BuildData getBuildData()
+    {
+        return buildData;
+    }
+
+    /**
+     * The branch the build was asked to build, with its parameters
+     * substituted, or null if it was not a single branch.
+     */
+    public String getSingleBranch()
+    {
+        return singleBranch;
+    }
+
+    private static XmlFile getFile(File dir)
+    {
+        return new XmlFile(Run.XSTREAM, new File(dir, "git-poll-state.xml"));
+    }
+
+    /**
+     * Get the state of a job.
+     *
+     * @return the state, or null if no build of the job has recorded data
+     *         since the state was introduced
+     */
+    public static PollState get(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (STATES)
+        {
+            PollState state = STATES.get(dir);
+            if (state == null)
+            {
+                state = NONE;
+                XmlFile file = getFile(dir);
+                if (file.exists())
+                {
+                    try
+                    {
+                        state = (PollState) file.read();
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.log(Level.WARNING, "Failed to read " + file, e);
+                    }
+                }
+                STATES.put(dir, state);
+            }
+            return state == NONE ? null : state;
+        }
+    }
+
+    /**
+     * Record the state of a job, unless a later build already has.
+     */
+    public static void record(AbstractProject<?, ?> project, PollState state) throws IOException
+    {
+        File dir = project.getRootDir();
+        synchronized (STATES)
+        {
+            PollState current = get(project);
+            if (current != null && current.buildNumber > state.buildNumber)
+                return;
+            getFile(dir).write(state);
+            STATES.put(dir, state);
+        }
+    }
+
+    /**
+     * Merge the data a build recorded with the state left by the builds
+     * that finished while it ran, and record the result. The data of the
+     * build takes the later builds of the branches too, but keeps its own
+     * last build; the state keeps the last build of the later build.
+     */
+    public static void merge(AbstractProject<?, ?> project, int buildNumber, BuildData buildData, String singleBranch) throws IOException
+    {
+        synchronized (STATES)
+        {
+            PollState current = get(project);
+            if (current != null && current.buildData != null)
+                buildData.merge(current.buildData);
+            // a full copy, so polling never has to resolve a snapshot
+            BuildData state = buildData.snapshot();
+            if (current != null && current.buildData != null)
+            {
+                state.merge(current.buildData);
+                if (current.buildNumber > buildNumber)
+                {
+                    buildNumber = current.buildNumber;
+                    singleBranch = current.singleBranch;
+                }
+            }
+            record(project, new PollState(buildNumber, state, singleBranch));
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PollState.class.getName());
+}
@@ -0,0 +1,98 @@
+package hudson.plugins.git.util;
+
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitSCM;
+import hudson.plugins.git.IGitAPI;
+import hudson.plugins.git.Revision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * Picks the same revisions as the default chooser, the tips of the branches
+ * not built yet, but in order of branch priority, then newest commit first,
+ * rather than in no particular order.
+ * <p>
+ * A branch matching an earlier priority pattern comes first, and branches
+ * matching none come last. When polling, a branch whose head was first seen
+ * less than the coalescing period ago is left for a later poll, so that a
+ * burst of updates to a branch gives one build of its newest head; see
+ * {@link BranchHeads}.
+ */
+public class PriorityBuildChooser extends BuildChooser {
+
+    public PriorityBuildChooser(GitSCM gitSCM, IGitAPI git, GitUtils utils, BuildData data)
+    {
+        super(gitSCM, git, utils, data);
+    }
+
+    public Collection<Revision> getCandidateRevisions(boolean isPollCall, String singleBranch)
+            throws GitException, IOException {
+        Collection<Revision> candidates = super.getCandidateRevisions(isPollCall, singleBranch);
+        if (candidates.isEmpty())
+            return candidates;
+
+        List<ObjectId> commits = new ArrayList<ObjectId>();
+        for (Revision candidate : candidates)
+        {
+            commits.add(candidate.getSha1());
+        }
+        List<Revision> revs = new ArrayList<Revision>(candidates);
+        sort(revs, gitSCM.getSchedulingOptions().getPriorityPatterns(), git.getCommitTimes(commits));
+        return revs;
+    }
+
+    /**
+     * Sort revisions highest priority first, then newest commit first.
+     *
+     * @param times the committer time of the revisions
+     */
+    static void sort(List<Revision> revs, final List<BranchSpec> patterns, final Map<ObjectId, Long> times)
+    {
+        Collections.sort(revs, new Comparator<Revision>() {
+            public int compare(Revision a, Revision b)
+            {
+                int result = getPriority(patterns, a) - getPriority(patterns, b);
+                if (result != 0)
+                    return result;
+                long timeA = getTime(times, a);
+                long timeB = getTime(times, b);
+                if (timeA != timeB)
+                    return timeA > timeB ? -1 : 1;
+                return a.getSha1String().compareTo(b.getSha1String());
+            }
+        });
+    }
+
+    /**
+     * The index of the first pattern a branch of a revision matches, or the
+     * number of patterns if none does.
+     */
+    static int getPriority(List<BranchSpec> patterns, Revision revision)
+    {
+        for (int i = 0; i < patterns.size(); i++)
+        {
+            for (Branch b : revision.getBranches())
+            {
+                if (patterns.get(i).matches(b.getName()))
+                    return i;
+            }
+        }
+        return patterns.size();
+    }
+
+    private static long getTime(Map<ObjectId, Long> times, Revision revision)
+    {
+        Long time = times.get(revision.getSha1());
+        return time == null ? 0 : time;
+    }
+}
@@ -0,0 +1,277 @@
+package hudson.plugins.git.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * The last build of each revision of a {@link FileBuildHistoryStore}, kept
+ * in a file rather than in memory, as the revisions built only ever grow: a
+ * hash table of SHA1s, each with the offset and number of its last build,
+ * read and written in place, that doubles when half full.
+ * <p>
+ * The index records how much of the history it covers, so that the builds
+ * appended after it was last written are indexed again when it is opened.
+ */
+final class RevisionIndex
+{
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE   = 32;
+    private static final int MIN_SLOTS   = 1024;
+
+    private final File       file;
+    private RandomAccessFile raf;
+    private FileChannel      channel;
+
+    private int              slots;
+    private int              count;
+    private long             covered;
+
+    RevisionIndex(File file) throws IOException
+    {
+        this.file = file;
+        open();
+        if (!readHeader())
+            clear();
+    }
+
+    private RevisionIndex(File file, int slots) throws IOException
+    {
+        this.file = file;
+        open();
+        reset(slots);
+    }
+
+    private void open() throws IOException
+    {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    private boolean readHeader() throws IOException
+    {
+        if (raf.length() < HEADER_SIZE)
+            return false;
+        ByteBuffer header = read(0, HEADER_SIZE);
+        slots = header.getInt(4);
+        count = header.getInt(8);
+        covered = header.getLong(16);
+        return header.getInt(0) == VERSION && slots >= MIN_SLOTS && (slots & (slots - 1)) == 0
+            && raf.length() >= HEADER_SIZE + (long) slots * SLOT_SIZE;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, VERSION);
+        header.putInt(4, slots);
+        header.putInt(8, count);
+        header.putLong(16, covered);
+        write(0, header);
+    }
+
+    /**
+     * Forget every revision, so that the whole history is indexed again.
+     */
+    void clear() throws IOException
+    {
+        reset(MIN_SLOTS);
+    }
+
+    private void reset(int slots) throws IOException
+    {
+        this.slots = slots;
+        count = 0;
+        covered = 0;
+        raf.setLength(0);
+        // the extended part of a file is not necessarily zeroed
+        ByteBuffer zeros = ByteBuffer.allocate(64 * SLOT_SIZE);
+        for (long pos = HEADER_SIZE; pos < HEADER_SIZE + (long) slots * SLOT_SIZE; pos += zeros.capacity())
+        {
+            zeros.clear();
+            write(pos, zeros);
+        }
+        writeHeader();
+    }
+
+    /**
+     * The length of the history indexed.
+     */
+    long getCovered()
+    {
+        return covered;
+    }
+
+    void setCovered(long covered) throws IOException
+    {
+        this.covered = covered;
+        writeHeader();
+    }
+
+    /**
+     * Number of revisions indexed.
+     */
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * The offset of the last build of a revision, or -1 if it was never built.
+     */
+    long get(ObjectId sha1) throws IOException
+    {
+        ByteBuffer slot = read(find(sha1), SLOT_SIZE);
+        long offset = slot.getLong(Constants.OBJECT_ID_LENGTH);
+        return offset == 0 ? -1 : offset;
+    }
+
+    /**
+     * Record a build of a revision, unless a later one is recorded already.
+     */
+    void put(ObjectId sha1, long offset, int number) throws IOException
+    {
+        long pos = find(sha1);
+        ByteBuffer slot = read(pos, SLOT_SIZE);
+        boolean added = slot.getLong(Constants.OBJECT_ID_LENGTH) == 0;
+        if (!added && slot.getInt(Constants.OBJECT_ID_LENGTH + 8) > number)
+            return;
+
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        sha1.copyRawTo(raw, 0);
+        slot.clear();
+        slot.put(raw);
+        slot.putLong(offset);
+        slot.putInt(number);
+        slot.flip();
+        write(pos, slot);
+        if (!added)
+            return;
+
+        count++;
+        if (count * 2L > slots)
+            grow();
+        else
+            writeHeader();
+    }
+
+    /**
+     * The position of the slot holding a revision, or of the empty slot it
+     * goes in.
+     */
+    private long find(ObjectId sha1) throws IOException
+    {
+        byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        sha1.copyRawTo(raw, 0);
+        byte[] key = new byte[Constants.OBJECT_ID_LENGTH];
+        int mask = slots - 1;
+        for (int i = hash(raw) & mask;; i = (i + 1) & mask)
+        {
+            long pos = HEADER_SIZE + (long) i * SLOT_SIZE;
+            ByteBuffer slot = read(pos, SLOT_SIZE);
+            if (slot.getLong(Constants.OBJECT_ID_LENGTH) == 0)
+                return pos;
+            slot.get(key);
+            if (Arrays.equals(key, raw))
+                return pos;
+        }
+    }
+
+    /**
+     * A hash of all of the SHA1, rather than of one of its words, which made
+     * up SHA1s share.
+     */
+    private static int hash(byte[] raw)
+    {
+        int h = 0;
+        for (int i = 0; i < raw.length; i += 4)
+        {
+            int w = (raw[i] & 0xff) << 24 | (raw[i + 1] & 0xff) << 16 | (raw[i + 2] & 0xff) << 8 | (raw[i + 3] & 0xff);
+            h = (h ^ w) * 0x9e3779b1;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Move the revisions to a table twice as large, written aside and then
+     * moved in place.
+     */
+    private void grow() throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        RevisionIndex larger = new RevisionIndex(tmp, slots * 2);
+        try
+        {
+            byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+            ByteBuffer chunk = ByteBuffer.allocate(64 * SLOT_SIZE);
+            for (long pos = HEADER_SIZE; pos < HEADER_SIZE + (long) slots * SLOT_SIZE; pos += chunk.capacity())
+            {
+                chunk.clear();
+                readFully(pos, chunk);
+                chunk.flip();
+                while (chunk.remaining() >= SLOT_SIZE)
+                {
+                    chunk.get(raw);
+                    long offset = chunk.getLong();
+                    int number = chunk.getInt();
+                    if (offset != 0)
+                        larger.put(ObjectId.fromRaw(raw), offset, number);
+                }
+            }
+            larger.setCovered(covered);
+        }
+        finally
+        {
+            larger.close();
+        }
+
+        close();
+        if (!file.delete() || !tmp.renameTo(file))
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        open();
+        if (!readHeader())
+            throw new IOException("Unable to read " + file);
+    }
+
+    void close() throws IOException
+    {
+        raf.close();
+    }
+
+    private ByteBuffer read(long pos, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(pos, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private void readFully(long pos, ByteBuffer buf) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new IOException("Unexpected end of " + file);
+        }
+    }
+
+    private void write(long pos, ByteBuffer buf) throws IOException
+    {
+        int start = buf.position();
+        while (buf.hasRemaining())
+        {
+            channel.write(buf, pos + buf.position() - start);
+        }
+    }
+}
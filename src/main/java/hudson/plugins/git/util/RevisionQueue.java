@@ -0,0 +1,239 @@
+package hudson.plugins.git.util;
+
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Run;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * The revisions of a job found by polling and not built yet, oldest first,
+ * kept in the job directory so that they are not forgotten between polls.
+ * <p>
+ * Each poll only looks at the branches whose heads changed since the
+ * previous poll: a branch that moved replaces its queued revision with its
+ * new head, and a deleted branch leaves the queue. The heads are those of
+ * the remote branches once fetched, which the fetch prunes of the branches
+ * deleted in the remote repository. Each build takes the revision at the
+ * head of the queue instead of scanning every branch.
+ * <p>
+ * There is a single instance per job in a JVM, and every change is written
+ * to the file, replacing it atomically. The depth of the queue is exported
+ * through the job by {@link RevisionQueueAction}.
+ */
+public class RevisionQueue
+{
+    private static final Map<File, RevisionQueue> QUEUES = new HashMap<File, RevisionQueue>();
+
+    private transient File dir;
+
+    /**
+     * The queued revisions by SHA1, oldest first.
+     */
+    private final LinkedHashMap<ObjectId, Revision> revisions = new LinkedHashMap<ObjectId, Revision>();
+
+    /**
+     * The branch heads seen by the last poll, by branch name.
+     */
+    private Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+
+    private static XmlFile getFile(File dir)
+    {
+        return new XmlFile(Run.XSTREAM, new File(dir, "git-revision-queue.xml"));
+    }
+
+    /**
+     * Get the queue of a job, reading it from the job directory the first
+     * time.
+     */
+    public static RevisionQueue forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (QUEUES)
+        {
+            RevisionQueue queue = QUEUES.get(dir);
+            if (queue == null)
+            {
+                XmlFile file = getFile(dir);
+                if (file.exists())
+                {
+                    try
+                    {
+                        queue = (RevisionQueue) file.read();
+                    }
+                    catch (IOException e)
+                    {
+                        LOGGER.log(Level.WARNING, "Failed to read " + file + ", starting with an empty queue", e);
+                    }
+                }
+                if (queue == null)
+                    queue = new RevisionQueue();
+                queue.dir = dir;
+                QUEUES.put(dir, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * The branch heads seen by the last poll.
+     */
+    public synchronized Map<String, ObjectId> getHeads()
+    {
+        return new HashMap<String, ObjectId>(heads);
+    }
+
+    /**
+     * The queued revisions, oldest first.
+     */
+    public synchronized List<Revision> getRevisions()
+    {
+        return new ArrayList<Revision>(revisions.values());
+    }
+
+    /**
+     * The number of queued revisions.
+     */
+    public synchronized int getDepth()
+    {
+        return revisions.size();
+    }
+
+    /**
+     * Find the revisions to queue among the branch heads that changed since
+     * the previous poll: the heads of the changed branches matching the
+     * branches to build, not built yet, that are not wholly contained in
+     * another of them.
+     *
+     * @param previous the heads seen by the previous poll
+     * @param current the heads now
+     */
+    public static Collection<Revision> findNewRevisions(Map<String, ObjectId> previous, Collection<Branch> current,
+            Collection<BranchSpec> specs, BuildData data, GitUtils utils)
+    {
+        Map<ObjectId, Revision> changed = new LinkedHashMap<ObjectId, Revision>();
+        for (Branch b : current)
+        {
+            if (b.getSHA1().equals(previous.get(b.getName())))
+                continue;
+            boolean keep = false;
+            for (BranchSpec spec : specs)
+            {
+                if (spec.matches(b.getName()))
+                {
+                    keep = true;
+                    break;
+                }
+            }
+            if (!keep || (data != null && data.hasBeenBuilt(b.getSHA1())))
+                continue;
+
+            Revision r = changed.get(b.getSHA1());
+            if (r == null)
+            {
+                r = new Revision(b.getSHA1());
+                changed.put(b.getSHA1(), r);
+            }
+            r.getBranches().add(b);
+        }
+        return utils.filterTipBranches(changed.values());
+    }
+
+    /**
+     * Bring the queue up to date with a poll. The revisions of the branches
+     * that moved or were deleted leave the queue, then the new revisions are
+     * added behind the others, and the revisions built since are dropped.
+     *
+     * @param current the branch heads now, by name, without the branches
+     *        deleted in the remote repositories
+     * @param found the revisions found by {@link #findNewRevisions}
+     * @return true if the queue or the heads changed, and were saved
+     */
+    public synchronized boolean update(Map<String, ObjectId> current, Collection<Revision> found, BuildData data) throws IOException
+    {
+        boolean changed = false;
+        // the branches of a revision read from the file cannot be changed,
+        // so a revision gets new ones
+        for (Iterator<Revision> i = revisions.values().iterator(); i.hasNext();)
+        {
+            Revision r = i.next();
+            List<Branch> branches = new ArrayList<Branch>();
+            for (Branch b : r.getBranches())
+            {
+                if (r.getSha1().equals(current.get(b.getName())))
+                    branches.add(b);
+            }
+            if (branches.isEmpty() || (data != null && data.hasBeenBuilt(r.getSha1())))
+            {
+                i.remove();
+                changed = true;
+            }
+            else if (branches.size() != r.getBranches().size())
+            {
+                r.setBranches(branches);
+                changed = true;
+            }
+        }
+        for (Revision r : found)
+        {
+            Revision queued = revisions.get(r.getSha1());
+            if (queued == null)
+            {
+                revisions.put(r.getSha1(), r);
+                changed = true;
+                continue;
+            }
+            List<Branch> branches = new ArrayList<Branch>(queued.getBranches());
+            for (Branch b : r.getBranches())
+            {
+                if (!queued.containsBranchName(b.getName()))
+                    branches.add(b);
+            }
+            if (branches.size() != queued.getBranches().size())
+            {
+                queued.setBranches(branches);
+                changed = true;
+            }
+        }
+        if (!heads.equals(current))
+        {
+            heads = new HashMap<String, ObjectId>(current);
+            changed = true;
+        }
+        if (changed)
+            save();
+        return changed;
+    }
+
+    /**
+     * Take a revision out of the queue, once a build has picked it.
+     */
+    public synchronized void remove(ObjectId sha1) throws IOException
+    {
+        if (revisions.remove(sha1) != null)
+            save();
+    }
+
+    private void save() throws IOException
+    {
+        if (dir != null)
+            getFile(dir).write(this);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RevisionQueue.class.getName());
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.git.util;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TransientProjectActionFactory;
+import hudson.plugins.git.GitSCM;
+import hudson.scm.SCM;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Exports the depth of the {@link RevisionQueue} of a job through the remote
+ * API of the job, so that a backlog of unbuilt revisions can be monitored.
+ * It is not shown on the job page.
+ */
+@ExportedBean(defaultVisibility = 999)
+public class RevisionQueueAction implements Action
+{
+    private final AbstractProject<?, ?> project;
+
+    public RevisionQueueAction(AbstractProject<?, ?> project)
+    {
+        this.project = project;
+    }
+
+    /**
+     * The number of revisions found by polling and not built yet.
+     */
+    @Exported
+    public int getRevisionQueueDepth()
+    {
+        return RevisionQueue.forProject(project).getDepth();
+    }
+
+    public String getIconFileName()
+    {
+        return null;
+    }
+
+    public String getDisplayName()
+    {
+        return null;
+    }
+
+    public String getUrlName()
+    {
+        return null;
+    }
+
+    /**
+     * Adds the action to the jobs whose Git SCM queues revisions.
+     */
+    @Extension
+    public static class Factory extends TransientProjectActionFactory
+    {
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target)
+        {
+            SCM scm = target.getScm();
+            if (scm instanceof GitSCM && ((GitSCM) scm).useRevisionQueue())
+                return Collections.singletonList(new RevisionQueueAction(target));
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package hudson.plugins.git.util;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.lib.ObjectId;
+
+/**
+ * The revisions being built by the running builds of a job, so that builds
+ * running concurrently never pick the same revision, and polling does not
+ * start a build for a revision that is already being built.
+ * <p>
+ * A build reserves the revision it picks on the master, and the reservation
+ * is released when the build completes.
+ */
+public class RevisionReservations
+{
+    private static final Map<File, RevisionReservations> RESERVATIONS = new HashMap<File, RevisionReservations>();
+
+    /**
+     * Number of the build that reserved each revision.
+     */
+    private final Map<ObjectId, Integer> builds = new HashMap<ObjectId, Integer>();
+
+    /**
+     * Get the reservations of a job. There is a single instance per job in a JVM.
+     */
+    public static RevisionReservations forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (RESERVATIONS)
+        {
+            RevisionReservations reservations = RESERVATIONS.get(dir);
+            if (reservations == null)
+            {
+                reservations = new RevisionReservations();
+                RESERVATIONS.put(dir, reservations);
+            }
+            return reservations;
+        }
+    }
+
+    /**
+     * Reserve a revision for a build.
+     *
+     * @return true if the revision is now reserved for the build, false if
+     *         another running build has it
+     */
+    public synchronized boolean reserve(ObjectId sha1, int build)
+    {
+        Integer holder = builds.get(sha1);
+        if (holder != null && holder != build)
+            return false;
+        builds.put(sha1.copy(), build);
+        return true;
+    }
+
+    /**
+     * The number of the build a revision is reserved for, or -1.
+     */
+    public synchronized int getHolder(ObjectId sha1)
+    {
+        Integer holder = builds.get(sha1);
+        return holder == null ? -1 : holder;
+    }
+
+    public synchronized boolean isReserved(ObjectId sha1)
+    {
+        return builds.containsKey(sha1);
+    }
+
+    /**
+     * The revisions reserved by running builds.
+     */
+    public synchronized Set<ObjectId> getReserved()
+    {
+        return new HashSet<ObjectId>(builds.keySet());
+    }
+
+    /**
+     * Release the revisions reserved by a build.
+     */
+    public synchronized void release(int build)
+    {
+        for (Iterator<Integer> i = builds.values().iterator(); i.hasNext();)
+        {
+            if (i.next() == build)
+                i.remove();
+        }
+    }
+
+    @Extension
+    public static class ReleaseListener extends RunListener<AbstractBuild>
+    {
+        public ReleaseListener()
+        {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener)
+        {
+            RevisionReservations reservations;
+            synchronized (RESERVATIONS)
+            {
+                reservations = RESERVATIONS.get(build.getProject().getRootDir());
+            }
+            if (reservations != null)
+                reservations.release(build.getNumber());
+        }
+    }
+}
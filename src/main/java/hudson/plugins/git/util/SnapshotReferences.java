@@ -0,0 +1,230 @@
+package hudson.plugins.git.util;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The snapshot each build of a job refers to, kept next to the snapshots in
+ * the job directory, so that deleting a build finds the oldest snapshot
+ * still referred to without loading the record of every other build.
+ * <p>
+ * The file is a log of lines holding a build number and the number of its
+ * snapshot, 0 once the build is deleted, and is rewritten when most of its
+ * lines are stale. A job without the file, such as one recorded before it
+ * was introduced, is scanned once to write it.
+ */
+final class SnapshotReferences
+{
+    private static final Map<File, SnapshotReferences> REFERENCES = new HashMap<File, SnapshotReferences>();
+
+    private final File file;
+
+    /**
+     * Build number -> snapshot number, and snapshot number -> number of
+     * builds referring to it.
+     */
+    private final Map<Integer, Integer>        snapshots = new HashMap<Integer, Integer>();
+    private final SortedMap<Integer, Integer> counts    = new TreeMap<Integer, Integer>();
+    private int                                lines;
+
+    SnapshotReferences(File jobDir)
+    {
+        this.file = new File(new File(jobDir, "git-snapshots"), "references");
+    }
+
+    /**
+     * Get the references of a job, reading them from the job directory, or
+     * scanning its builds if they were never written, the first time.
+     */
+    static SnapshotReferences forProject(AbstractProject<?, ?> project)
+    {
+        File dir = project.getRootDir();
+        synchronized (REFERENCES)
+        {
+            SnapshotReferences references = REFERENCES.get(dir);
+            if (references == null)
+            {
+                references = new SnapshotReferences(dir);
+                try
+                {
+                    if (!references.read())
+                        references.scan(project);
+                }
+                catch (IOException e)
+                {
+                    LOGGER.log(Level.WARNING, "Failed to read " + references.file + ", scanning the builds", e);
+                    references.scan(project);
+                }
+                REFERENCES.put(dir, references);
+            }
+            return references;
+        }
+    }
+
+    /**
+     * Read the references from the file.
+     *
+     * @return false if there is no file
+     */
+    synchronized boolean read() throws IOException
+    {
+        if (!file.exists())
+            return false;
+        BufferedReader rdr = new BufferedReader(new FileReader(file));
+        try
+        {
+            String line;
+            while ((line = rdr.readLine()) != null)
+            {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 2)
+                    continue; // cut short by a crash
+                try
+                {
+                    set(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+                }
+                catch (NumberFormatException e)
+                {
+                    continue;
+                }
+                lines++;
+            }
+        }
+        finally
+        {
+            rdr.close();
+        }
+        return true;
+    }
+
+    private void scan(AbstractProject<?, ?> project)
+    {
+        synchronized (this)
+        {
+            for (AbstractBuild<?, ?> b = project.getFirstBuild(); b != null; b = b.getNextBuild())
+            {
+                BuildData data = b.getAction(BuildData.class);
+                if (data != null && data.getSnapshotBuildNumber() > 0)
+                    set(b.getNumber(), data.getSnapshotBuildNumber());
+            }
+            try
+            {
+                rewrite();
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Record the snapshot a build refers to.
+     */
+    synchronized void add(int build, int snapshot) throws IOException
+    {
+        Integer previous = snapshots.get(build);
+        if (previous != null && previous.intValue() == snapshot)
+            return;
+        set(build, snapshot);
+        append(build, snapshot);
+    }
+
+    /**
+     * Forget a deleted build.
+     */
+    synchronized void remove(int build) throws IOException
+    {
+        if (!snapshots.containsKey(build))
+            return;
+        set(build, 0);
+        append(build, 0);
+    }
+
+    /**
+     * The number of the oldest snapshot a build refers to, or
+     * {@link Integer#MAX_VALUE} if none does.
+     */
+    synchronized int getOldest()
+    {
+        return counts.isEmpty() ? Integer.MAX_VALUE : counts.firstKey();
+    }
+
+    private void set(int build, int snapshot)
+    {
+        Integer previous = snapshot == 0 ? snapshots.remove(build) : snapshots.put(build, snapshot);
+        if (previous != null)
+        {
+            int count = counts.get(previous) - 1;
+            if (count == 0)
+                counts.remove(previous);
+            else
+                counts.put(previous, count);
+        }
+        if (snapshot != 0)
+        {
+            Integer count = counts.get(snapshot);
+            counts.put(snapshot, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void append(int build, int snapshot) throws IOException
+    {
+        if (lines > 2 * snapshots.size() + 1000)
+        {
+            rewrite();
+            return;
+        }
+        file.getParentFile().mkdirs();
+        PrintWriter w = new PrintWriter(new FileWriter(file, true));
+        try
+        {
+            w.println(build + " " + snapshot);
+        }
+        finally
+        {
+            w.close();
+        }
+        lines++;
+    }
+
+    /**
+     * Write the current references aside and move them in place.
+     */
+    private void rewrite() throws IOException
+    {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter w = new PrintWriter(new FileWriter(tmp));
+        try
+        {
+            for (Map.Entry<Integer, Integer> e : snapshots.entrySet())
+            {
+                w.println(e.getKey() + " " + e.getValue());
+            }
+        }
+        finally
+        {
+            w.close();
+        }
+        file.delete();
+        if (!tmp.renameTo(file))
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        lines = snapshots.size();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotReferences.class.getName());
+}
@@ -0,0 +1,97 @@
+package hudson.plugins.git;
+
+import java.io.File;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class CommitCacheTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("commits", ".cache");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static String sha1(int i) {
+        return String.format("%040x", i);
+    }
+
+    /**
+     * An entry of a commit with no paths and a log of the given length.
+     */
+    private static CommitCache.Entry entry(int length) {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            log.append('x');
+        }
+        return new CommitCache.Entry(log.toString(), Collections.<String>emptyList());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        // two bytes per char, plus 64 bytes of overhead
+        long size = 2 * 100 + 64;
+        CommitCache cache = new CommitCache(file, 3 * size);
+        cache.put(sha1(1), entry(100));
+        cache.put(sha1(2), entry(100));
+        cache.put(sha1(3), entry(100));
+        assertEquals(3 * size, cache.getBytes());
+
+        assertNotNull(cache.get(sha1(1)));
+        cache.put(sha1(4), entry(100));
+        assertNull("the least recently used commit is evicted", cache.get(sha1(2)));
+        assertNotNull(cache.get(sha1(1)));
+        assertEquals(3, cache.size());
+        assertEquals(3 * size, cache.getBytes());
+
+        // replacing an entry only counts the new one
+        cache.put(sha1(4), entry(100));
+        assertEquals(3, cache.size());
+        assertEquals(3 * size, cache.getBytes());
+
+        // a larger entry evicts as many as needed
+        cache.put(sha1(5), entry(200));
+        assertEquals(2, cache.size());
+        assertEquals(size + 2 * 200 + 64, cache.getBytes());
+        assertNotNull(cache.get(sha1(5)));
+        assertNotNull(cache.get(sha1(4)));
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testNewCommitsAreAppended() throws Exception {
+        CommitCache cache = new CommitCache(file, CommitCache.MAX_BYTES);
+        cache.put(sha1(1), new CommitCache.Entry("log 1", Collections.singletonList(":100644 100644 a b M\tsrc/a")));
+        cache.save();
+        long length = file.length();
+        cache.save();
+        assertEquals("nothing new to save", length, file.length());
+
+        cache.put(sha1(2), entry(10));
+        cache.save();
+        assertTrue(file.length() > length);
+
+        CommitCache reloaded = new CommitCache(file, CommitCache.MAX_BYTES);
+        assertEquals(2, reloaded.size());
+        assertEquals("log 1", reloaded.get(sha1(1)).getLog());
+        assertEquals(Collections.singletonList(":100644 100644 a b M\tsrc/a"), reloaded.get(sha1(1)).getPaths());
+        assertEquals(cache.getBytes(), reloaded.getBytes());
+    }
+
+    public void testEvictedCommitsAreRewritten() throws Exception {
+        CommitCache cache = new CommitCache(file, 2 * (2 * 100 + 64));
+        for (int i = 1; i <= 5000; i++) {
+            cache.put(sha1(i), entry(100));
+            cache.save();
+        }
+        // about 150 bytes a record, and at most 1004 records
+        assertTrue(file.length() < 160000);
+        CommitCache reloaded = new CommitCache(file, 2 * (2 * 100 + 64));
+        assertEquals(2, reloaded.size());
+        assertNotNull(reloaded.get(sha1(5000)));
+    }
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.git;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class CommitIndexTest extends TestCase {
+
+    private static final ObjectId A = ObjectId.fromString("123abc456def789abc012def345abc678def901a");
+    private static final ObjectId B = ObjectId.fromString("bc234def567abc890def123abc456def789abc01");
+    private static final ObjectId C = ObjectId.fromString("0000000000000000000000000000000000000001");
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("git-commits", ".index");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testIndex() throws Exception {
+        CommitIndex index = new CommitIndex(file);
+        index.addContained(Arrays.asList(A, B), 2);
+        index.addBuilt(B, 2);
+        index.addBuilt(B, 3);
+        index.addBuilt(B, 3);
+        index.addContained(Arrays.asList(A), 1);
+        index.addContained(Arrays.asList(A, C), 4);
+
+        assertEquals(Arrays.asList(2, 3), index.getBuiltBy(B));
+        assertEquals(Collections.<Integer>emptyList(), index.getBuiltBy(A));
+        assertEquals(1, index.getFirstBuild(A));
+        assertEquals(2, index.getFirstBuild(B));
+        assertEquals(4, index.getFirstBuild(C));
+        assertEquals(-1, index.getFirstBuild(ObjectId.zeroId()));
+
+        CommitIndex reloaded = new CommitIndex(file);
+        assertEquals(Arrays.asList(2, 3), reloaded.getBuiltBy(B));
+        assertEquals(1, reloaded.getFirstBuild(A));
+        assertEquals(4, reloaded.getFirstBuild(C));
+    }
+
+    public void testTruncatedRecordIsDropped() throws Exception {
+        CommitIndex index = new CommitIndex(file);
+        index.addBuilt(A, 1);
+        index.addBuilt(B, 2);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        CommitIndex reloaded = new CommitIndex(file);
+        assertEquals(1, reloaded.getFirstBuild(A));
+        assertEquals(-1, reloaded.getFirstBuild(B));
+        reloaded.addBuilt(B, 3);
+        assertEquals(Arrays.asList(3), new CommitIndex(file).getBuiltBy(B));
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.plugins.git;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class GitChangeSetListTest extends TestCase {
+
+    private static GitChangeSetList changeSets(int count) {
+        List<GitChangeSet> logs = new ArrayList<GitChangeSet>();
+        for (int i = 0; i < count; i++) {
+            List<String> lines = new ArrayList<String>();
+            lines.add("commit " + String.format("%040x", i));
+            lines.add("committer John Committer <jcommitter@nospam.com> 1234567 -0600");
+            lines.add("");
+            lines.add("    Commit " + i + ".");
+            logs.add(new GitChangeSet(lines));
+        }
+        return new GitChangeSetList(null, logs);
+    }
+
+    public void testPageCount() {
+        assertEquals(1, changeSets(0).getPageCount());
+        assertEquals(1, changeSets(GitChangeSetList.PAGE_SIZE).getPageCount());
+        assertEquals(2, changeSets(GitChangeSetList.PAGE_SIZE + 1).getPageCount());
+    }
+
+    public void testParsePage() {
+        GitChangeSetList list = changeSets(2 * GitChangeSetList.PAGE_SIZE + 1);
+        assertEquals(0, list.parsePage(null));
+        assertEquals(0, list.parsePage("first"));
+        assertEquals(0, list.parsePage("-1"));
+        assertEquals(1, list.parsePage("1"));
+        assertEquals("past the end is the last page", 2, list.parsePage("3"));
+        assertEquals(2, list.parsePage(String.valueOf(Integer.MAX_VALUE)));
+        assertEquals(0, changeSets(0).parsePage("1"));
+    }
+
+    public void testGetPage() {
+        GitChangeSetList list = changeSets(GitChangeSetList.PAGE_SIZE + 1);
+        List<GitChangeSet> first = list.getPage(0);
+        assertEquals(GitChangeSetList.PAGE_SIZE, first.size());
+        // newest first
+        assertEquals(String.format("%040x", GitChangeSetList.PAGE_SIZE), first.get(0).getId());
+
+        List<GitChangeSet> last = list.getPage(1);
+        assertEquals(1, last.size());
+        assertEquals(String.format("%040x", 0), last.get(0).getId());
+
+        assertTrue(list.getPage(2).isEmpty());
+        assertTrue(changeSets(0).getPage(0).isEmpty());
+    }
+}
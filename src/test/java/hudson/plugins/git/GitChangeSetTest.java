@@ -68,4 +68,20 @@ public class GitChangeSetTest extends TestCase {
         }
     }
 
+    public void testChangeSetWithOmittedPaths() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("commit 123abc456def");
+        lines.add("committer John Committer <jcommitter@nospam.com> 1234567 -0600");
+        lines.add("");
+        lines.add("    Commit title.");
+        lines.add("");
+        lines.add(":000000 123456 0000000000000000000000000000000000000000 123abc456def789abc012def345abc678def901a A\tsrc/test/add.file");
+        lines.add("omitted-paths 41 42");
+        GitChangeSet changeSet = new GitChangeSet(lines);
+
+        Assert.assertEquals(1, changeSet.getPaths().size());
+        Assert.assertEquals(41, changeSet.getOmittedPaths());
+        Assert.assertEquals("Commit title.", changeSet.getMsg());
+    }
+
 }
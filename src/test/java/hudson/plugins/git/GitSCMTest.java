@@ -5,17 +5,32 @@ import hudson.FilePath;
 import hudson.model.Cause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.model.User;
+import hudson.plugins.git.util.Build;
+import hudson.plugins.git.util.BuildData;
+import hudson.plugins.git.util.GerritBuildChooser;
+import hudson.plugins.git.util.PollResult;
+import hudson.plugins.git.util.RevisionQueue;
 import hudson.util.StreamTaskListener;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.PersonIdent;
+import org.spearce.jgit.transport.RemoteConfig;
 
 /**
  * Tests for {@link GitSCM}.
@@ -200,11 +215,295 @@ public class GitSCMTest extends HudsonTestCase {
         assertFalse("scm polling should not detect any more changes after last build", project.pollSCMChanges(listener));
     }
 
+    /**
+     * A branch deleted in the remote repository is pruned from the build data
+     * by the next build, when the job prunes deleted branches.
+     */
+    public void testDeletedBranchIsPruned() throws Exception {
+        final FreeStyleProject project = setupProject(new MockStaplerRequest()
+            .setRepo(workDir.getAbsolutePath(), "origin", "")
+            .setBranch("")
+            .put("git.buildData.pruneDeleted", "on"));
+        final String commitFile1 = "commitFile1";
+        commit(commitFile1, johnDoe, "Commit number 1");
+        build(project, Result.SUCCESS, commitFile1);
+
+        final String fork = "fork";
+        git.branch(fork);
+        git.checkout(fork);
+        final String forkFile1 = "forkFile1";
+        commit(forkFile1, johnDoe, "Fork commit number 1");
+        FreeStyleBuild build = build(project, Result.SUCCESS, forkFile1);
+        assertNotNull(BuildData.of(build).getLastBuildOfBranch("origin/fork"));
+
+        git.checkout("master");
+        git.launchCommand("branch", "-D", fork);
+        final String commitFile2 = "commitFile2";
+        commit(commitFile2, johnDoe, "Commit number 2");
+        build = build(project, Result.SUCCESS, commitFile2);
+        assertNull("the deleted branch should be pruned", BuildData.of(build).getLastBuildOfBranch("origin/fork"));
+        assertNotNull(BuildData.of(build).getLastBuildOfBranch("origin/master"));
+        for (Branch b : new GitAPI("git", build.getWorkspace(), listener, envVars).getRemoteBranches()) {
+            assertFalse("the tracking branch should be deleted", "origin/fork".equals(b.getName()));
+        }
+    }
+
+    /**
+     * A queued revision leaves the revision queue once its branch is deleted
+     * in the remote repository.
+     */
+    public void testDeletedBranchLeavesRevisionQueue() throws Exception {
+        final FreeStyleProject project = setupProject(new MockStaplerRequest()
+            .setRepo(workDir.getAbsolutePath(), "origin", "")
+            .setBranch("")
+            .put("git.schedule.queue", "on"));
+        final String commitFile1 = "commitFile1";
+        commit(commitFile1, johnDoe, "Commit number 1");
+        build(project, Result.SUCCESS, commitFile1);
+
+        final String fork = "fork";
+        git.branch(fork);
+        git.checkout(fork);
+        commit("forkFile1", johnDoe, "Fork commit number 1");
+        git.checkout("master");
+        assertTrue("scm polling should queue the 'fork' branch", project.pollSCMChanges(listener));
+        assertEquals(1, RevisionQueue.forProject(project).getDepth());
+
+        git.launchCommand("branch", "-D", fork);
+        assertFalse("scm polling should find nothing left to build", project.pollSCMChanges(listener));
+        assertEquals(0, RevisionQueue.forProject(project).getDepth());
+    }
+
+    /**
+     * The changes built in parallel are forgotten once every change up to
+     * them has been built.
+     */
+    public void testParallelChangesBelowWatermarkAreForgotten() throws Exception {
+        final FreeStyleProject project = setupProject(new MockStaplerRequest()
+            .setRepo(workDir.getAbsolutePath(), "origin", "")
+            .setBranch("")
+            .put("git.choosing_strategy", GitSCM.GERRIT)
+            .put("git.schedule.gerritParallel", "on"));
+        final String commitFile1 = "commitFile1";
+        commit(commitFile1, johnDoe, "Commit number 1");
+        final String change1 = GerritBuildChooser.CHANGE_PREFIX + git.revParse("HEAD").name();
+        FreeStyleBuild build = build(project, Result.SUCCESS, commitFile1);
+        assertNotNull(BuildData.of(build).getLastBuildOfBranch(change1));
+
+        final String commitFile2 = "commitFile2";
+        commit(commitFile2, johnDoe, "Commit number 2");
+        final String change2 = GerritBuildChooser.CHANGE_PREFIX + git.revParse("HEAD").name();
+        build = build(project, Result.SUCCESS, commitFile2);
+        assertNull("the change below the watermark should be forgotten", BuildData.of(build).getLastBuildOfBranch(change1));
+        assertNotNull(BuildData.of(build).getLastBuildOfBranch(change2));
+    }
+
+    /**
+     * The candidates found by a poll are only reused by a build of the same
+     * branch, while the remote repository is unchanged, the candidates are
+     * in the workspace and some of them have not been built.
+     */
+    public void testPollResultReuse() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1");
+        List<RemoteConfig> remotes = ((GitSCM) project.getScm()).getRepositories();
+        GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+        BuildData buildData = BuildData.of(build);
+
+        commit("commitFile2", johnDoe, "Commit number 2");
+        workspaceGit.launchCommand("fetch", "origin");
+        ObjectId head = git.revParse("HEAD");
+        Revision revision = new Revision(head, Collections.singletonList(new Branch("origin/master", head)));
+        PollResult result = new PollResult(Collections.singletonList(revision),
+                PollResult.getReferences(workspaceGit, remotes), null);
+        assertEquals(Collections.singletonList(revision), result.reuse(workspaceGit, remotes, buildData, null, listener));
+
+        assertNull("another branch is built", result.reuse(workspaceGit, remotes, buildData, "other", listener));
+
+        BuildData built = buildData.clone();
+        built.saveBuild(new Build(revision, build.getNumber() + 1, null));
+        assertNull("all the candidates are built", result.reuse(workspaceGit, remotes, built, null, listener));
+
+        Revision missing = new Revision(ObjectId.fromString("0123456789012345678901234567890123456789"));
+        assertNull("a candidate is not in the workspace", result.forCandidates(Collections.singletonList(missing))
+                .reuse(workspaceGit, remotes, buildData, null, listener));
+
+        commit("commitFile3", johnDoe, "Commit number 3");
+        assertNull("the remote repository changed", result.reuse(workspaceGit, remotes, buildData, null, listener));
+    }
+
+    /**
+     * A revision found by two polls, while the build the first one scheduled
+     * is still in the queue, is only scheduled once.
+     */
+    public void testRevisionIsScheduledOnce() throws Exception {
+        final FreeStyleProject project = setupProject(new MockStaplerRequest()
+            .setRepo(workDir.getAbsolutePath(), "origin", "")
+            .setBranch("master")
+            .put("git.schedule.eachCandidate", "on"));
+        commit("commitFile1", johnDoe, "Commit number 1");
+        build(project, Result.SUCCESS, "commitFile1");
+
+        // keep the scheduled builds in the queue
+        hudson.setQuietPeriod(3600);
+        commit("commitFile2", johnDoe, "Commit number 2");
+        assertFalse("the poll schedules the build itself", project.pollSCMChanges(listener));
+        assertFalse("the poll schedules the build itself", project.pollSCMChanges(listener));
+
+        int queued = 0;
+        for (Queue.Item item : hudson.getQueue().getItems()) {
+            if (item.task == project) {
+                queued++;
+                assertEquals(git.revParse("HEAD"), item.getAction(RevisionParameterAction.class).getRevision().getSha1());
+            }
+        }
+        assertEquals(1, queued);
+    }
+
+    /**
+     * A build of the revision the workspace is already at skips the checkout
+     * and the submodule steps, and leaves the workspace as it was.
+     */
+    public void testSameRevisionSkipsCheckout() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        File subDir = createSubmoduleRepository();
+        addSubmodule(subDir);
+        build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+        String log = build.getLog();
+        assertTrue(log.contains("The workspace is already at "));
+        assertFalse(log.contains("Checking out "));
+        assertTrue(log.contains("Submodules are up to date, skipping submodule init, sync, fetch and update"));
+        GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+        assertEquals(git.revParse("HEAD"), workspaceGit.revParse("HEAD"));
+        assertTrue(workspaceGit.getModifiedFiles().isEmpty());
+    }
+
+    /**
+     * A revision that changes <tt>.gitmodules</tt> syncs the submodules,
+     * even though they are initialized and up to date.
+     */
+    public void testChangedGitModulesSyncsSubmodules() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        File subDir = createSubmoduleRepository();
+        addSubmodule(subDir);
+        build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+
+        // the same submodule, moved to another repository
+        File movedDir = createTmpDir();
+        git.launchCommand("clone", subDir.getAbsolutePath(), movedDir.getAbsolutePath());
+        git.launchCommand("config", "-f", ".gitmodules", "submodule.sub.url", movedDir.getAbsolutePath());
+        git.add(".gitmodules");
+        git.launchCommand("commit", "-m", "Move the submodule");
+
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+        String log = build.getLog();
+        assertTrue(log.contains("Checking out "));
+        assertTrue(log.contains("Submodules are up to date, skipping submodule init, fetch and update"));
+        GitAPI workspaceGit = new GitAPI("git", build.getWorkspace(), listener, envVars);
+        assertEquals(movedDir.getAbsolutePath(), workspaceGit.launchCommand("config", "submodule.sub.url").trim());
+    }
+
+    /**
+     * A build of a SHA1 skips the fetch when the commit and the commits of
+     * its submodules are already in the workspace, and fetches when a
+     * submodule commit is missing.
+     */
+    public void testCompleteCommitIsNotFetched() throws Exception {
+        commit("commitFile1", johnDoe, "Commit number 1");
+        File subDir = createSubmoduleRepository();
+        addSubmodule(subDir);
+        FreeStyleProject project = setupSimpleProject(git.revParse("HEAD").name());
+        build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+
+        FreeStyleBuild build = build(project, Result.SUCCESS, "commitFile1", "sub/subFile1");
+        assertTrue(build.getLog().contains("Commit " + git.revParse("HEAD").name()
+                + " and its submodules are already in the workspace, not fetching"));
+
+        // a commit that moves the submodule to a commit the workspace lacks
+        FilePath subWorkspace = new FilePath(subDir);
+        GitAPI subGit = new GitAPI("git", subWorkspace, listener, envVars);
+        subWorkspace.child("subFile2").write("subFile2", null);
+        subGit.add("subFile2");
+        subGit.launchCommand("commit", "-m", "Submodule commit number 2");
+        new GitAPI("git", workspace.child("sub"), listener, envVars).launchCommand("pull", "origin", "master");
+        git.add("sub");
+        git.launchCommand("commit", "-m", "Update the submodule");
+
+        // only the superproject commit is fetched into the workspace
+        new GitAPI("git", build.getWorkspace(), listener, envVars).launchCommand("fetch", "origin");
+        project.setScm(hudson.getScm("GitSCM").newInstance(new MockStaplerRequest()
+            .setRepo(workDir.getAbsolutePath(), "origin", "")
+            .setBranch(git.revParse("HEAD").name()), null));
+
+        build = build(project, Result.SUCCESS, "sub/subFile2");
+        String log = build.getLog();
+        assertFalse(log.contains("already in the workspace, not fetching"));
+        assertTrue(log.contains("Fetching changes from the remote Git repository"));
+    }
+
+    /**
+     * The paths of a changeset not rendered with the page are served as
+     * JSON, a bounded number at a time, with the number remaining.
+     */
+    public void testChangeSetPaths() throws Exception {
+        FreeStyleProject project = setupSimpleProject("master");
+        commit("commitFile1", johnDoe, "Commit number 1");
+        build(project, Result.SUCCESS, "commitFile1");
+
+        int files = GitChangeSetList.PATHS_PER_REQUEST + 30;
+        for (int i = 0; i < files; i++) {
+            workspace.child("dir/file" + i).write("file" + i, null);
+        }
+        git.add("dir");
+        git.launchCommand("commit", "-m", "Commit number 2");
+        FreeStyleBuild build = build(project, Result.SUCCESS, "dir/file0");
+        String url = build.getUrl() + "changeSet/paths?changeset=0&from=";
+
+        JSONObject json = paths(url + GitChangeSetList.INLINE_PATHS);
+        JSONArray paths = json.getJSONArray("paths");
+        assertEquals(GitChangeSetList.PATHS_PER_REQUEST, paths.size());
+        assertEquals(files - GitChangeSetList.INLINE_PATHS - GitChangeSetList.PATHS_PER_REQUEST, json.getInt("remaining"));
+        assertTrue(paths.getJSONObject(0).getString("path").startsWith("dir/file"));
+        assertEquals("add", paths.getJSONObject(0).getString("editType"));
+
+        json = paths(url + (files - 5));
+        assertEquals(5, json.getJSONArray("paths").size());
+        assertEquals(0, json.getInt("remaining"));
+
+        json = paths(url + (files + 5));
+        assertEquals(0, json.getJSONArray("paths").size());
+        assertEquals(0, json.getInt("remaining"));
+
+        assertStatus(400, build.getUrl() + "changeSet/paths?changeset=0&from=first");
+        assertStatus(404, build.getUrl() + "changeSet/paths?changeset=1&from=0");
+    }
+
+    private JSONObject paths(String url) throws Exception {
+        return JSONObject.fromObject(new WebClient().goTo(url, "application/json").getWebResponse().getContentAsString());
+    }
+
+    private void assertStatus(int status, String url) throws Exception {
+        try {
+            new WebClient().goTo(url);
+            fail(url + " should fail");
+        } catch (FailingHttpStatusCodeException e) {
+            assertEquals(status, e.getStatusCode());
+        }
+    }
+
     private FreeStyleProject setupSimpleProject(String branchString) throws Exception {
-        FreeStyleProject project = createFreeStyleProject();
-        final MockStaplerRequest req = new MockStaplerRequest()
+        return setupProject(new MockStaplerRequest()
             .setRepo(workDir.getAbsolutePath(), "origin", "")
-            .setBranch(branchString);
+            .setBranch(branchString));
+    }
+
+    private FreeStyleProject setupProject(MockStaplerRequest req) throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
         project.setScm(hudson.getScm("GitSCM").newInstance(req, null));
         project.getBuildersList().add(new CaptureEnvironmentBuilder());
         return project;
@@ -234,6 +533,25 @@ public class GitSCMTest extends HudsonTestCase {
         git.launchCommand("commit", "-m", message);
     }
 
+    /**
+     * A repository with a single commit, to add as a submodule.
+     */
+    private File createSubmoduleRepository() throws Exception {
+        File subDir = createTmpDir();
+        FilePath subWorkspace = new FilePath(subDir);
+        GitAPI subGit = new GitAPI("git", subWorkspace, listener, envVars);
+        subGit.init();
+        subWorkspace.child("subFile1").write("subFile1", null);
+        subGit.add("subFile1");
+        subGit.launchCommand("commit", "-m", "Submodule commit number 1");
+        return subDir;
+    }
+
+    private void addSubmodule(File subDir) throws GitException {
+        git.launchCommand("submodule", "add", subDir.getAbsolutePath(), "sub");
+        git.launchCommand("commit", "-m", "Add the submodule");
+    }
+
     private EnvVars getEnvVars(FreeStyleProject project) {
         for (hudson.tasks.Builder b : project.getBuilders()) {
             if (b instanceof CaptureEnvironmentBuilder) {
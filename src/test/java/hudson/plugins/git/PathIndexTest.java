@@ -0,0 +1,101 @@
+package hudson.plugins.git;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PathIndexTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("git-paths", ".index");
+        file.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private List<GitChangeSet> changeSets(String... paths) {
+        List<String> lines = new ArrayList<String>();
+        lines.add("commit 123abc456def");
+        lines.add("committer John Committer <jcommitter@nospam.com> 1234567 -0600");
+        lines.add("");
+        lines.add("    Commit title.");
+        lines.add("");
+        for (String path : paths) {
+            lines.add(":123456 789012 123abc456def789abc012def345abc678def901a bc234def567abc890def123abc456def789abc01 M\t" + path);
+        }
+        return Collections.singletonList(new GitChangeSet(lines));
+    }
+
+    public void testIndex() throws Exception {
+        PathIndex index = new PathIndex(file);
+        index.add(1, changeSets("src/a.file", "src/b.file"));
+        index.add(2, changeSets("src/b.file"));
+        index.add(3, changeSets("doc/c.file"));
+        index.add(2, changeSets("src/a.file"));
+
+        assertEquals(Arrays.asList(1), index.getBuilds("src/a.file"));
+        assertEquals(Arrays.asList(1, 2), index.getBuilds("src/b.file"));
+        assertEquals(Arrays.asList(1, 2), index.getBuilds("src/"));
+        assertEquals(Collections.<Integer>emptyList(), index.getBuilds("src/c.file"));
+
+        PathIndex reloaded = new PathIndex(file);
+        assertTrue(reloaded.contains(3));
+        assertEquals(Arrays.asList(3), reloaded.getBuilds("doc/c.file"));
+        assertEquals(Arrays.asList(1, 2), reloaded.getBuilds("src/b.file"));
+    }
+
+    public void testRenamesIndexBothPaths() throws Exception {
+        PathIndex index = new PathIndex(file);
+        index.add(1, changeSets("src/from.file\tsrc/to.file"));
+        assertEquals(Arrays.asList(1), index.getBuilds("src/from.file"));
+        assertEquals(Arrays.asList(1), index.getBuilds("src/to.file"));
+    }
+
+    public void testTruncatedRecordIsDropped() throws Exception {
+        PathIndex index = new PathIndex(file);
+        index.add(1, changeSets("src/a.file"));
+        index.add(2, changeSets("src/a.file"));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        PathIndex reloaded = new PathIndex(file);
+        assertEquals(Arrays.asList(1), reloaded.getBuilds("src/a.file"));
+        reloaded.add(3, changeSets("src/a.file"));
+        assertEquals(Arrays.asList(1, 3), new PathIndex(file).getBuilds("src/a.file"));
+    }
+
+    public void testDamagedLengthIsDropped() throws Exception {
+        PathIndex index = new PathIndex(file);
+        index.add(1, changeSets("src/a.file"));
+        long valid = file.length();
+        index.add(2, changeSets("src/a.file"));
+        // the length of the first path of build 2
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(valid + 8);
+        raf.writeInt(-1);
+        raf.close();
+
+        PathIndex reloaded = new PathIndex(file);
+        assertEquals(Arrays.asList(1), reloaded.getBuilds("src/a.file"));
+        assertEquals(valid, file.length());
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(3);
+        raf.writeInt(1);
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.close();
+        assertEquals(Arrays.asList(1), new PathIndex(file).getBuilds("src/a.file"));
+        assertEquals(valid, file.length());
+    }
+}
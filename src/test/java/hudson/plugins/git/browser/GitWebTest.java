@@ -0,0 +1,129 @@
+package hudson.plugins.git.browser;
+
+import hudson.plugins.git.GitChangeSet;
+import hudson.plugins.git.GitChangeSet.Path;
+import hudson.scm.browsers.QueryBuilder;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+public class GitWebTest extends TestCase {
+
+    /**
+     * The number of links the benchmark generates.
+     */
+    private static final int LINKS = Integer.getInteger(GitWebTest.class.getName() + ".links", 1000);
+
+    private GitChangeSet createChangeSet(int paths) {
+        List<String> lines = new ArrayList<String>();
+        lines.add("commit 123abc456def");
+        lines.add("parent 345mno678pqr");
+        lines.add("committer John Committer <jcommitter@nospam.com> 1234567 -0600");
+        lines.add("");
+        lines.add("    Commit title.");
+        lines.add("");
+        for (int i = 0; i < paths; i++) {
+            lines.add(":123456 789012 123abc456def789abc012def345abc678def901a bc234def567abc890def123abc456def789abc01 M\tsrc/test/modified" + i + ".file");
+        }
+        return new GitChangeSet(lines);
+    }
+
+    public void testLinks() throws Exception {
+        GitWeb gitWeb = new GitWeb("http://gitweb.example.com/gitweb.cgi?p=project.git");
+        for (Path path : createChangeSet(3).getPaths()) {
+            assertEquals("http://gitweb.example.com/gitweb.cgi?p=project.git&a=blob&f=" + path.getPath()
+                    + "&h=bc234def567abc890def123abc456def789abc01&hb=123abc456def", gitWeb.getFileLink(path).toString());
+            assertEquals("http://gitweb.example.com/gitweb.cgi?p=project.git&a=blobdiff&f=" + path.getPath()
+                    + "&fp=" + path.getPath()
+                    + "&h=123abc456def789abc012def345abc678def901a&hp=bc234def567abc890def123abc456def789abc01"
+                    + "&hb=123abc456def&hpb=345mno678pqr", gitWeb.getDiffLinkString(path));
+        }
+    }
+
+    public void testLinksWithoutQuery() throws Exception {
+        GitWeb gitWeb = new GitWeb("http://gitweb.example.com/project");
+        Path path = createChangeSet(1).getPaths().iterator().next();
+        assertEquals("http://gitweb.example.com/project/?a=blob&f=src/test/modified0.file"
+                + "&h=bc234def567abc890def123abc456def789abc01&hb=123abc456def", gitWeb.getFileLinkString(path));
+    }
+
+    public void testLinksAreCachedPerBrowser() throws Exception {
+        Path path = createChangeSet(1).getPaths().iterator().next();
+        GitWeb gitWeb = new GitWeb("http://gitweb.example.com/a/");
+        String link = gitWeb.getFileLinkString(path);
+        assertSame(link, gitWeb.getFileLinkString(path));
+        assertTrue(new GitWeb("http://gitweb.example.com/b/").getFileLinkString(path).startsWith("http://gitweb.example.com/b/"));
+    }
+
+    /**
+     * Checks the links built from the precomputed prefix are the ones the
+     * change views used to build with QueryBuilder.
+     */
+    public void testLinksMatchQueryBuilder() throws Exception {
+        assertLinksMatchQueryBuilder(new GitWeb("http://gitweb.example.com/gitweb.cgi?p=project.git"));
+    }
+
+    public void testLinksWithoutQueryMatchQueryBuilder() throws Exception {
+        assertLinksMatchQueryBuilder(new GitWeb("http://gitweb.example.com/project"));
+    }
+
+    private void assertLinksMatchQueryBuilder(GitWeb gitWeb) throws Exception {
+        List<Path> paths = new ArrayList<Path>(createChangeSet(10).getPaths());
+        assertEquals(queryBuilderLinks(gitWeb, paths), links(gitWeb, paths));
+    }
+
+    /**
+     * Generates links the way the change views used to and the way they do
+     * now, and checks both give the same links. It only generates a few
+     * unless the system property is set, to 100000 for instance, and logs
+     * the time each way took at FINE.
+     */
+    public void testLinkGenerationBenchmark() throws Exception {
+        GitWeb gitWeb = new GitWeb("http://gitweb.example.com/gitweb.cgi?p=project.git");
+        List<Path> paths = new ArrayList<Path>(createChangeSet(LINKS / 2).getPaths());
+
+        long start = System.nanoTime();
+        List<String> expected = queryBuilderLinks(gitWeb, paths);
+        long queryBuilder = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<String> actual = links(gitWeb, paths);
+        long uncached = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        links(gitWeb, paths);
+        long cached = System.nanoTime() - start;
+
+        assertEquals(expected, actual);
+        LOGGER.fine(LINKS + " GitWeb links: " + queryBuilder / 1000000 + "ms with QueryBuilder, "
+                + uncached / 1000000 + "ms with templates, " + cached / 1000000 + "ms cached");
+    }
+
+    private static List<String> queryBuilderLinks(GitWeb gitWeb, List<Path> paths) throws Exception {
+        URL url = gitWeb.getUrl();
+        List<String> links = new ArrayList<String>(2 * paths.size());
+        for (Path path : paths) {
+            links.add(new URL(url, url.getPath() + new QueryBuilder(url.getQuery()).add("a=blob").add("f=" + path.getPath())
+                    .add("h=" + path.getDst()).add("hb=" + path.getChangeSet().getId()).toString()).toString());
+            links.add(new URL(url, url.getPath() + new QueryBuilder(url.getQuery()).add("a=blobdiff").add("f=" + path.getPath())
+                    .add("fp=" + path.getPath()).add("h=" + path.getSrc()).add("hp=" + path.getDst())
+                    .add("hb=" + path.getChangeSet().getId()).add("hpb=" + path.getChangeSet().getParentCommit()).toString()).toString());
+        }
+        return links;
+    }
+
+    private static List<String> links(GitWeb gitWeb, List<Path> paths) throws Exception {
+        List<String> links = new ArrayList<String>(2 * paths.size());
+        for (Path path : paths) {
+            links.add(gitWeb.getFileLinkString(path));
+            links.add(gitWeb.getDiffLinkString(path));
+        }
+        return links;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GitWebTest.class.getName());
+}
@@ -0,0 +1,281 @@
+package hudson.plugins.git.util;
+
+import hudson.model.Run;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class BuildDataTest extends TestCase {
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    private static Build build(int number, String... branches) {
+        ObjectId sha1 = sha1(number);
+        Collection<Branch> b = new ArrayList<Branch>();
+        for (String branch : branches) {
+            b.add(new Branch(branch, sha1));
+        }
+        return new Build(new Revision(sha1, b), number, null);
+    }
+
+    /**
+     * Records a chain of builds, each building one branch, and checks every
+     * build sees all the branches built so far.
+     */
+    public void testDeltasSeeAllBranches() {
+        BuildData first = new BuildData();
+        for (int i = 0; i < 500; i++) {
+            first.saveBuild(build(i + 1, "branch" + i));
+        }
+        first.recordedBy("job", 1, null);
+
+        BuildData data = first;
+        Map<String, Build> expected = new HashMap<String, Build>(data.getBuildsByBranchName());
+        for (int number = 2; number < 2 + 2 * BuildData.SNAPSHOT_INTERVAL; number++) {
+            BuildData next = data.clone();
+            Build build = build(1000 + number, "branch" + (number % 7));
+            next.saveBuild(build);
+            next.recordedBy("job", number, data);
+            expected.put("branch" + (number % 7), build);
+
+            assertEquals(expected, new HashMap<String, Build>(next.getBuildsByBranchName()));
+            assertEquals(expected.size(), next.getBuildsByBranchName().size());
+            assertTrue(next.hasBeenBuilt(build.getSHA1()));
+            assertSame(build, next.getLastBuildOfBranch("branch" + (number % 7)));
+            assertFalse(first.hasBeenBuilt(build.getSHA1()));
+            data = next;
+        }
+    }
+
+    public void testSnapshotIsTakenPeriodically() {
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "master"));
+        data.recordedBy("job", 1, null);
+
+        int snapshots = 0;
+        for (int number = 2; number < 2 + 2 * BuildData.SNAPSHOT_INTERVAL; number++) {
+            data = data.clone();
+            data.saveBuild(build(number, "master"));
+            data.recordedBy("job", number, null);
+            if (data.isSnapshot())
+                snapshots++;
+        }
+        assertEquals(2, snapshots);
+    }
+
+    public void testLegacyDataIsCopied() {
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "master"));
+
+        BuildData clone = data.clone();
+        assertTrue(clone.isSnapshot());
+        clone.saveBuild(build(2, "master"));
+        assertEquals(sha1(1), data.getLastBuildOfBranch("master").getSHA1());
+        assertEquals(sha1(2), clone.getLastBuildOfBranch("master").getSHA1());
+    }
+
+    public void testCompaction() {
+        long day = 24L * 60 * 60 * 1000;
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "origin/deleted", "detached"));
+        data.saveBuild(build(2, "origin/master"));
+        data.saveBuild(build(3, "other/kept"));
+        data.recordedBy("job", 3, null);
+
+        BuildData next = data.clone();
+        next.saveBuild(build(4, "origin/topic"));
+        assertEquals(1, next.compact(Arrays.asList("origin/master", "origin/topic"), Arrays.asList("origin"), 0, System.currentTimeMillis()));
+        assertNull(next.getLastBuildOfBranch("origin/deleted"));
+        assertFalse(next.getBuildsByBranchName().containsKey("origin/deleted"));
+        assertEquals(4, next.getBuildsByBranchName().size());
+        assertNotNull(data.getLastBuildOfBranch("origin/deleted"));
+
+        // everything but the last build is old by then
+        assertEquals(3, next.compact(null, Arrays.asList("origin"), day, System.currentTimeMillis() + 2 * day));
+        assertEquals(Collections.singleton("origin/topic"), next.getBuildsByBranchName().keySet());
+        assertEquals(4, next.getPrunedBranches());
+        assertEquals(4, next.getTotalPrunedBranches());
+        assertEquals(0, next.clone().getPrunedBranches());
+        assertEquals(4, next.clone().getTotalPrunedBranches());
+    }
+
+    public void testBranchPages() {
+        BuildData data = new BuildData();
+        for (int i = 0; i < 250; i++) {
+            data.saveBuild(build(i + 1, String.format("origin/b%03d", i)));
+        }
+        data.saveBuild(build(300, "other/x"));
+
+        BuildData.BranchPage page = data.getBranches("origin/", false, 0, 100);
+        assertEquals(250, page.getTotal());
+        assertEquals(100, page.getNames().size());
+        assertEquals("origin/b000", page.getNames().get(0));
+        assertTrue(page.hasNext());
+        assertFalse(page.hasPrevious());
+
+        page = data.getBranches("origin/", false, 200, 100);
+        assertEquals(50, page.getNames().size());
+        assertEquals("origin/b249", page.getNames().get(49));
+        assertEquals(250, page.getBuilds().get(49).getBuildNumber());
+        assertFalse(page.hasNext());
+
+        page = data.getBranches(null, true, 0, 2);
+        assertEquals(251, page.getTotal());
+        assertEquals(Arrays.asList("other/x", "origin/b249"), page.getNames());
+
+        data.saveBuild(build(301, "origin/b000"));
+        assertEquals("origin/b000", data.getBranches("origin/", true, 0, 1).getNames().get(0));
+        assertEquals(0, data.getBranches("none/", false, 0, 10).getTotal());
+    }
+
+    /**
+     * Two builds start from the same data and finish out of order: each
+     * keeps the later build of every branch.
+     */
+    public void testConcurrentBuildsMerge() {
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "origin/a", "origin/b", "origin/c"));
+        data.recordedBy("job", 1, null);
+
+        BuildData second = data.clone();
+        BuildData third = data.clone();
+        third.saveBuild(build(3, "origin/a"));
+        third.recordedBy("job", 3, data);
+        second.saveBuild(build(2, "origin/a", "origin/b"));
+        second.compact(Arrays.asList("origin/a", "origin/b"), Arrays.asList("origin"), 0, 0);
+        second.recordedBy("job", 2, data);
+
+        assertEquals(1, second.merge(third));
+        assertEquals(3, second.getLastBuildOfBranch("origin/a").getBuildNumber());
+        assertEquals(2, second.getLastBuildOfBranch("origin/b").getBuildNumber());
+        // pruned by the build itself
+        assertNull(second.getLastBuildOfBranch("origin/c"));
+        assertEquals(2, second.lastBuild.getBuildNumber());
+
+        assertEquals(1, third.merge(second));
+        assertEquals(3, third.getLastBuildOfBranch("origin/a").getBuildNumber());
+        assertEquals(2, third.getLastBuildOfBranch("origin/b").getBuildNumber());
+        assertEquals(0, third.merge(second));
+    }
+
+    /**
+     * When a build finishes after a later one, as the poll state merges
+     * them, the state keeps the later build as its last build and the build
+     * keeps its own.
+     */
+    public void testBuildsFinishingOutOfOrder() {
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "origin/a", "origin/b"));
+        data.recordedBy("job", 1, null);
+
+        BuildData second = data.clone();
+        BuildData third = data.clone();
+        third.saveBuild(build(3, "origin/a"));
+        third.recordedBy("job", 3, data);
+        BuildData state = third.snapshot();
+
+        second.saveBuild(build(2, "origin/b"));
+        second.recordedBy("job", 2, data);
+        second.merge(state);
+        BuildData merged = second.snapshot();
+        merged.merge(state);
+
+        assertEquals(2, second.lastBuild.getBuildNumber());
+        assertEquals(3, merged.lastBuild.getBuildNumber());
+        assertEquals(3, merged.getLastBuildOfBranch("origin/a").getBuildNumber());
+        assertEquals(2, merged.getLastBuildOfBranch("origin/b").getBuildNumber());
+
+        // and the other way round
+        BuildData later = third.snapshot();
+        later.merge(second.snapshot());
+        assertEquals(3, later.lastBuild.getBuildNumber());
+    }
+
+    /**
+     * A snapshot is kept in the job directory, where deltas find it once
+     * its build is deleted, until no build refers to it.
+     */
+    public void testSnapshotsAreKeptInTheJobDirectory() throws Exception {
+        File dir = File.createTempFile("git-job", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            BuildData data = new BuildData();
+            data.saveBuild(build(1, "origin/a", "origin/b"));
+            data.recordedBy("job", 1, null);
+            data.keepSnapshot(dir);
+
+            BuildData delta = data.clone();
+            delta.saveBuild(build(2, "origin/a"));
+            delta.recordedBy("job", 2, data);
+            assertFalse(delta.isSnapshot());
+            delta.keepSnapshot(dir);
+            assertEquals(1, delta.getSnapshotBuildNumber());
+
+            BuildData kept = BuildData.readSnapshot(dir, 1);
+            assertEquals(data.getBuildsByBranchName().keySet(), kept.getBuildsByBranchName().keySet());
+            assertEquals(1, kept.getLastBuildOfBranch("origin/a").getBuildNumber());
+            assertEquals(sha1(1), kept.getLastBuildOfBranch("origin/b").getSHA1());
+            assertNull(BuildData.readSnapshot(dir, 2));
+
+            BuildData.pruneSnapshots(dir, 1);
+            assertNotNull(BuildData.readSnapshot(dir, 1));
+            BuildData.pruneSnapshots(dir, 2);
+            assertNull(BuildData.readSnapshot(dir, 1));
+        } finally {
+            new File(dir, "git-snapshots").delete();
+            dir.delete();
+        }
+    }
+
+    private static Object reload(Object o) {
+        return Run.XSTREAM.fromXML(Run.XSTREAM.toXML(o));
+    }
+
+    /**
+     * Loads the records of builds made before snapshots, each holding every
+     * branch, and checks they share the branch names and SHA1s they repeat.
+     */
+    public void testLoadedBuildsAreShared() throws Exception {
+        int builds = 1000;
+        int branches = 10;
+
+        List<BuildData> loaded = new ArrayList<BuildData>(builds);
+        BuildData data = new BuildData();
+        for (int number = 1; number <= builds; number++) {
+            data = data.snapshot();
+            data.saveBuild(build(number, "origin/branch" + (number % branches)));
+            loaded.add((BuildData) reload(data));
+        }
+
+        String branch = "origin/branch" + ((branches + 1) % branches);
+        Revision first = loaded.get(branches).getLastBuildOfBranch(branch).revision;
+        Revision second = loaded.get(branches + 1).getLastBuildOfBranch(branch).revision;
+        assertSame(first.getSha1(), second.getSha1());
+        assertSame(first.getBranches().iterator().next().getName(), second.getBranches().iterator().next().getName());
+
+        BuildData last = loaded.get(builds - 1);
+        assertSame(last.lastBuild, last.getLastBuildOfBranch("origin/branch" + (builds % branches)));
+        assertSame(last.lastBuild.revision.getSha1(), last.lastBuild.revision.getBranches().iterator().next().getSHA1());
+        try {
+            first.getBranches().clear();
+            fail("the branches of a loaded revision are immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package hudson.plugins.git.util;
+
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class FileBuildHistoryStoreTest extends TestCase {
+
+    private File file;
+    private File index;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("git-history", ".log");
+        file.delete();
+        index = new File(file.getPath().replaceAll("\\.log$", ".idx"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        index.delete();
+    }
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    private static Build build(int number, String... branches) {
+        ObjectId sha1 = sha1(number);
+        Collection<Branch> b = new ArrayList<Branch>();
+        for (String branch : branches) {
+            b.add(new Branch(branch, sha1));
+        }
+        return new Build(new Revision(sha1, b), number, null);
+    }
+
+    public void testStore() throws IOException {
+        FileBuildHistoryStore store = new FileBuildHistoryStore(file);
+        assertNull(store.getLastBuild());
+
+        store.saveBuild(build(1, "origin/master", "origin/topic"));
+        Build second = build(2, "origin/master");
+        second.mergeRevision = build(1, "origin/release").revision;
+        store.saveBuild(second);
+
+        assertEquals(2, store.getLastBuild().getBuildNumber());
+        assertEquals(second.getTimestamp(), store.getLastBuild().getTimestamp());
+        assertEquals(sha1(1), store.getLastBuild().mergeRevision.getSha1());
+        assertEquals(2, store.getLastBuildOfBranch("origin/master").getBuildNumber());
+        assertEquals(1, store.getLastBuildOfBranch("origin/topic").getBuildNumber());
+        assertEquals(1, store.getBuildOfSha1(sha1(1)).getBuildNumber());
+        assertNull(store.getBuildOfSha1(sha1(3)));
+
+        store.removeBranch("origin/topic");
+        assertNull(store.getLastBuildOfBranch("origin/topic"));
+        // still built, whatever the branch
+        assertNotNull(store.getBuildOfSha1(sha1(1)));
+        store.close();
+
+        store = new FileBuildHistoryStore(file);
+        assertEquals(new HashSet<String>(Arrays.asList("origin/master")), new HashSet<String>(store.getBranchNames()));
+        assertEquals(2, store.getLastBuild().getBuildNumber());
+        assertEquals(2, store.getRevisionCount());
+        store.close();
+    }
+
+    public void testTruncatedRecordIsDropped() throws IOException {
+        FileBuildHistoryStore store = new FileBuildHistoryStore(file);
+        store.saveBuild(build(1, "origin/master"));
+        store.saveBuild(build(2, "origin/master"));
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = new FileBuildHistoryStore(file);
+        assertEquals(1, store.getLastBuild().getBuildNumber());
+        store.saveBuild(build(3, "origin/master"));
+        store.close();
+
+        store = new FileBuildHistoryStore(file);
+        assertEquals(3, store.getLastBuildOfBranch("origin/master").getBuildNumber());
+        assertNull(store.getBuildOfSha1(sha1(2)));
+        store.close();
+    }
+
+    public void testLaterBuildStays() throws IOException {
+        FileBuildHistoryStore store = new FileBuildHistoryStore(file);
+        store.saveBuild(build(3, "origin/master"));
+        store.saveBuild(build(2, "origin/master", "origin/topic"));
+        assertEquals(3, store.getLastBuild().getBuildNumber());
+        assertEquals(3, store.getLastBuildOfBranch("origin/master").getBuildNumber());
+        assertEquals(2, store.getLastBuildOfBranch("origin/topic").getBuildNumber());
+        store.close();
+
+        store = new FileBuildHistoryStore(file);
+        assertEquals(3, store.getLastBuild().getBuildNumber());
+        assertEquals(3, store.getLastBuildOfBranch("origin/master").getBuildNumber());
+        store.close();
+    }
+
+    /**
+     * The revision index grows past its initial size, and is brought up to
+     * date with the history when opened.
+     */
+    public void testRevisionIndex() throws IOException {
+        FileBuildHistoryStore store = new FileBuildHistoryStore(file);
+        for (int i = 1; i <= 3000; i++) {
+            store.saveBuild(build(i, "origin/b" + (i % 7)));
+        }
+        assertEquals(3000, store.getRevisionCount());
+        store.close();
+        assertTrue(index.exists());
+
+        store = new FileBuildHistoryStore(file);
+        assertEquals(3000, store.getRevisionCount());
+        for (int i = 1; i <= 3000; i++) {
+            assertEquals(i, store.getBuildOfSha1(sha1(i)).getBuildNumber());
+        }
+        assertEquals(Arrays.asList("origin/b0", "origin/b1", "origin/b2", "origin/b3", "origin/b4", "origin/b5", "origin/b6"),
+                store.getBranchNames());
+        store.close();
+
+        index.delete();
+        store = new FileBuildHistoryStore(file);
+        assertEquals(3000, store.getRevisionCount());
+        assertEquals(1500, store.getBuildOfSha1(sha1(1500)).getBuildNumber());
+        assertNull(store.getBuildOfSha1(sha1(3001)));
+        long count = store.getModificationCount();
+        store.removeBranch("origin/b0");
+        assertFalse(count == store.getModificationCount());
+        store.close();
+    }
+
+    /**
+     * Data moved into a store keeps the same last build of each branch, and
+     * the branches pruned from it stay pruned.
+     */
+    public void testImport() throws IOException {
+        BuildData data = new BuildData();
+        data.saveBuild(build(1, "origin/a", "origin/b", "origin/gone"));
+        data.saveBuild(build(2, "origin/b"));
+        data.saveBuild(build(3, "origin/c"));
+        data.compact(Arrays.asList("origin/a", "origin/b", "origin/c"), Arrays.asList("origin"), 0, 0);
+
+        FileBuildHistoryStore store = new FileBuildHistoryStore(file);
+        data.importInto(store);
+        assertEquals(3, store.getLastBuild().getBuildNumber());
+        assertEquals(1, store.getLastBuildOfBranch("origin/a").getBuildNumber());
+        assertEquals(2, store.getLastBuildOfBranch("origin/b").getBuildNumber());
+        assertEquals(3, store.getLastBuildOfBranch("origin/c").getBuildNumber());
+        assertNull(store.getLastBuildOfBranch("origin/gone"));
+        store.close();
+    }
+}
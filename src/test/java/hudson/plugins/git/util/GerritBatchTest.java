@@ -0,0 +1,96 @@
+package hudson.plugins.git.util;
+
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class GerritBatchTest extends TestCase {
+
+    private final TaskListener listener = new StreamTaskListener(System.out);
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    /**
+     * Commits from + 1 to to, oldest first, as the chooser lists them.
+     */
+    private static List<Revision> commits(int from, int to) {
+        List<Revision> revisions = new ArrayList<Revision>();
+        for (int i = from + 1; i <= to; i++) {
+            Revision revision = new Revision(sha1(i));
+            revision.getBranches().add(new Branch("timebased", sha1(i)));
+            revisions.add(revision);
+        }
+        return revisions;
+    }
+
+    public void testPassingBatchTakesOneBuild() throws IOException {
+        GerritBatch batch = new GerritBatch();
+        assertEquals(sha1(0), batch.getVerified(commits(-1, 0).get(0)));
+
+        assertEquals(sha1(8), batch.choose(commits(0, 10), 8, 1, listener).getSha1());
+        List<Build> builds = batch.update(Result.SUCCESS, listener);
+        // the 7 commits before it, by commit only
+        assertEquals(7, builds.size());
+        assertEquals(sha1(1), builds.get(0).getSHA1());
+        assertEquals(1, builds.get(6).getBuildNumber());
+        assertTrue(builds.get(6).getRevision().getBranches().isEmpty());
+        assertEquals(sha1(8), batch.getPassed().getSHA1());
+        assertEquals(1, batch.getPassed().getBuildNumber());
+
+        assertEquals(sha1(10), batch.choose(commits(0, 10), 8, 2, listener).getSha1());
+        assertEquals(sha1(8), batch.getVerified(null));
+    }
+
+    public void testFailingBatchIsBisected() throws IOException {
+        GerritBatch batch = new GerritBatch();
+        batch.getVerified(commits(-1, 0).get(0));
+
+        // commit 6 broke the build: 8 fails, 4 passes, 6 fails, 5 passes
+        List<Integer> built = new ArrayList<Integer>();
+        for (int number = 1; number <= 4; number++) {
+            Revision next = batch.choose(commits(0, 8), 8, number, listener);
+            int commit = Integer.parseInt(next.getSha1String(), 16);
+            built.add(commit);
+            batch.update(commit >= 6 ? Result.FAILURE : Result.SUCCESS, listener);
+        }
+        assertEquals("[8, 4, 6, 5]", built.toString());
+        // the last build is the newest commit that passed, not the last one built
+        assertEquals(sha1(5), batch.getPassed().getSHA1());
+        assertEquals(4, batch.getPassed().getBuildNumber());
+
+        // the next batch starts after the culprit
+        assertEquals(sha1(8), batch.choose(commits(0, 8), 8, 5, listener).getSha1());
+        assertEquals(sha1(6), batch.getVerified(null));
+    }
+
+    public void testConcurrentBuildLeavesTheBatch() throws IOException {
+        GerritBatch batch = new GerritBatch();
+        batch.getVerified(commits(-1, 0).get(0));
+        assertEquals(sha1(8), batch.choose(commits(0, 10), 8, 1, listener).getSha1());
+        assertNull("the batch is left to build #1", batch.choose(commits(0, 10), 8, 2, listener));
+
+        assertEquals(7, batch.update(Result.SUCCESS, listener).size());
+        assertEquals(sha1(10), batch.choose(commits(0, 10), 8, 3, listener).getSha1());
+    }
+
+    public void testAbortedBuildIsRepeated() throws IOException {
+        GerritBatch batch = new GerritBatch();
+        batch.getVerified(commits(-1, 0).get(0));
+        assertEquals(sha1(4), batch.choose(commits(0, 4), 8, 1, listener).getSha1());
+        assertTrue(batch.update(Result.ABORTED, listener).isEmpty());
+        assertNull(batch.getPassed());
+        assertEquals(sha1(4), batch.choose(commits(0, 4), 8, 2, listener).getSha1());
+    }
+}
@@ -0,0 +1,91 @@
+package hudson.plugins.git.util;
+
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchSpec;
+import hudson.plugins.git.Revision;
+import hudson.plugins.git.opt.SchedulingOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class PriorityBuildChooserTest extends TestCase {
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    private static Revision revision(int i, String... branches) {
+        ObjectId sha1 = sha1(i);
+        Revision revision = new Revision(sha1);
+        for (String branch : branches) {
+            revision.getBranches().add(new Branch(branch, sha1));
+        }
+        return revision;
+    }
+
+    public void testPriority() {
+        SchedulingOptions options = new SchedulingOptions();
+        options.setBranchPriorities("origin/master\n  origin/release-*\n\n");
+        List<BranchSpec> patterns = options.getPriorityPatterns();
+        assertEquals(2, patterns.size());
+
+        assertEquals(0, PriorityBuildChooser.getPriority(patterns, revision(1, "origin/master")));
+        assertEquals(1, PriorityBuildChooser.getPriority(patterns, revision(2, "origin/release-1.0")));
+        assertEquals(2, PriorityBuildChooser.getPriority(patterns, revision(3, "origin/topic")));
+        // the best of its branches
+        assertEquals(0, PriorityBuildChooser.getPriority(patterns, revision(4, "origin/release-1.0", "origin/master")));
+
+        assertEquals(0, new SchedulingOptions().getPriorityPatterns().size());
+    }
+
+    public void testOrder() {
+        SchedulingOptions options = new SchedulingOptions();
+        options.setBranchPriorities("origin/master\norigin/release-*");
+        Revision topic = revision(1, "origin/topic");
+        Revision oldRelease = revision(2, "origin/release-1.0");
+        Revision newRelease = revision(3, "origin/release-2.0");
+        Revision master = revision(4, "origin/master");
+        Map<ObjectId, Long> times = new HashMap<ObjectId, Long>();
+        times.put(sha1(1), 4000L);
+        times.put(sha1(2), 1000L);
+        times.put(sha1(3), 2000L);
+        times.put(sha1(4), 500L);
+
+        List<Revision> revs = new ArrayList<Revision>(Arrays.asList(topic, oldRelease, newRelease, master));
+        PriorityBuildChooser.sort(revs, options.getPriorityPatterns(), times);
+        // by priority, then newest first, whatever the commit times across priorities
+        assertEquals(Arrays.asList(master, newRelease, oldRelease, topic), revs);
+    }
+
+    /**
+     * A branch is left alone for the coalescing period after polling first
+     * sees its head, however old the commit, and again when it moves.
+     */
+    public void testCoalescing() throws IOException {
+        BranchHeads heads = new BranchHeads();
+        // committed long ago, pushed now
+        Revision a = revision(1, "origin/a");
+        Revision b = revision(2, "origin/b");
+
+        assertTrue(heads.settle(Arrays.asList(a, b), 1000, 60).isEmpty());
+        assertTrue(heads.settle(Arrays.asList(a, b), 1059, 60).isEmpty());
+
+        // b moved in the meantime
+        Revision b2 = revision(3, "origin/b");
+        assertEquals(Arrays.asList(a), heads.settle(Arrays.asList(a, b2), 1060, 60));
+        assertTrue(heads.settle(Arrays.asList(b2), 1100, 60).isEmpty());
+        assertEquals(Arrays.asList(b2), heads.settle(Arrays.asList(b2), 1120, 60));
+
+        // a was built and forgotten, so its next head waits again
+        Revision a2 = revision(4, "origin/a");
+        assertEquals(Arrays.asList(b2), heads.settle(Arrays.asList(a2, b2), 1130, 60));
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.git.util;
+
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.Revision;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class RevisionQueueTest extends TestCase {
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    private static Revision revision(int i, String... branches) {
+        Revision revision = new Revision(sha1(i));
+        for (String branch : branches) {
+            revision.getBranches().add(new Branch(branch, sha1(i)));
+        }
+        return revision;
+    }
+
+    public void testUpdate() throws IOException {
+        RevisionQueue queue = new RevisionQueue();
+        Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+        heads.put("origin/a", sha1(1));
+        heads.put("origin/b", sha1(2));
+        assertTrue(queue.update(heads, Arrays.asList(revision(1, "origin/a"), revision(2, "origin/b")), null));
+        assertEquals(2, queue.getDepth());
+        assertEquals(heads, queue.getHeads());
+
+        // a poll that finds nothing new leaves the file alone
+        assertFalse(queue.update(new HashMap<String, ObjectId>(heads), Collections.<Revision>emptyList(), null));
+        assertFalse(queue.update(heads, Collections.singletonList(revision(1, "origin/a")), null));
+
+        // a moved to a new head, which goes to the back of the queue
+        heads.put("origin/a", sha1(3));
+        queue.update(heads, Collections.singletonList(revision(3, "origin/a")), null);
+        assertEquals(2, queue.getDepth());
+        assertEquals(sha1(2), queue.getRevisions().get(0).getSha1());
+        assertEquals(sha1(3), queue.getRevisions().get(1).getSha1());
+
+        // b deleted, c created at the head of a
+        heads.remove("origin/b");
+        heads.put("origin/c", sha1(3));
+        queue.update(heads, Collections.singletonList(revision(3, "origin/c")), null);
+        assertEquals(1, queue.getDepth());
+        assertEquals(2, queue.getRevisions().get(0).getBranches().size());
+
+        queue.remove(sha1(3));
+        assertEquals(0, queue.getDepth());
+    }
+
+    public void testBuiltRevisionsAreDropped() throws IOException {
+        RevisionQueue queue = new RevisionQueue();
+        Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+        heads.put("origin/a", sha1(1));
+        heads.put("origin/b", sha1(2));
+        queue.update(heads, Arrays.asList(revision(1, "origin/a"), revision(2, "origin/b")), null);
+
+        BuildData data = new BuildData();
+        data.saveBuild(new Build(revision(1, "origin/a"), 1, null));
+        queue.update(heads, Collections.<Revision>emptyList(), data);
+        assertEquals(1, queue.getDepth());
+        assertEquals(sha1(2), queue.getRevisions().get(0).getSha1());
+    }
+}
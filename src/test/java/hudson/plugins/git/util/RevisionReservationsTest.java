@@ -0,0 +1,31 @@
+package hudson.plugins.git.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.ObjectId;
+
+public class RevisionReservationsTest extends TestCase {
+
+    private static ObjectId sha1(int i) {
+        return ObjectId.fromString(String.format("%040x", i));
+    }
+
+    public void testReservation() {
+        RevisionReservations reservations = new RevisionReservations();
+        assertTrue(reservations.reserve(sha1(1), 5));
+        assertTrue(reservations.reserve(sha1(1), 5));
+        assertFalse(reservations.reserve(sha1(1), 6));
+        assertTrue(reservations.reserve(sha1(2), 6));
+        assertEquals(5, reservations.getHolder(sha1(1)));
+
+        reservations.release(5);
+        assertFalse(reservations.isReserved(sha1(1)));
+        assertTrue(reservations.isReserved(sha1(2)));
+        assertTrue(reservations.reserve(sha1(1), 6));
+        assertEquals(-1, reservations.getHolder(sha1(3)));
+        assertEquals(new HashSet<ObjectId>(Arrays.asList(sha1(1), sha1(2))), reservations.getReserved());
+    }
+}
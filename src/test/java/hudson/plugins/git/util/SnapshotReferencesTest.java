@@ -0,0 +1,71 @@
+package hudson.plugins.git.util;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class SnapshotReferencesTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("git-job", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File snapshots = new File(dir, "git-snapshots");
+        File[] files = snapshots.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        snapshots.delete();
+        dir.delete();
+    }
+
+    private SnapshotReferences reopen() throws Exception {
+        SnapshotReferences references = new SnapshotReferences(dir);
+        assertTrue(references.read());
+        return references;
+    }
+
+    public void testOldestReferencedSnapshot() throws Exception {
+        SnapshotReferences references = new SnapshotReferences(dir);
+        assertFalse(references.read());
+        assertEquals(Integer.MAX_VALUE, references.getOldest());
+
+        // builds 1 to 3 refer to snapshot 1, builds 4 and 5 to snapshot 4
+        for (int build = 1; build <= 5; build++) {
+            references.add(build, build < 4 ? 1 : 4);
+        }
+        assertEquals(1, references.getOldest());
+
+        references.remove(1);
+        references.remove(3);
+        assertEquals(1, reopen().getOldest());
+        references.remove(2);
+        assertEquals(4, references.getOldest());
+        assertEquals(4, reopen().getOldest());
+
+        references.remove(4);
+        references.remove(5);
+        assertEquals(Integer.MAX_VALUE, reopen().getOldest());
+    }
+
+    public void testStaleLinesAreRewritten() throws Exception {
+        SnapshotReferences references = new SnapshotReferences(dir);
+        for (int build = 1; build <= 5000; build++) {
+            references.add(build, build);
+            if (build > 1)
+                references.remove(build - 1);
+        }
+        assertEquals(5000, references.getOldest());
+        assertTrue(new File(new File(dir, "git-snapshots"), "references").length() < 20000);
+        assertEquals(5000, reopen().getOldest());
+    }
+}